@@ -136,6 +136,10 @@ public abstract class AbstractBlockChain {
     private double falsePositiveTrend;
     private double previousFalsePositiveRate;
 
+    // Recent ancestors of the block being connected, for the difficulty algorithms. Big enough for the deepest one,
+    // KimotoGravityWell, which may look back a week of blocks plus the parent of the last one. Guarded by lock.
+    private final DifficultyWindow difficultyWindow = new DifficultyWindow(7 * 24 * 60 * 60 / 150 + 1);
+
 
     /**
      * Constructs a BlockChain connected to the given list of listeners (eg, wallets) and a store.
@@ -371,9 +375,7 @@ public abstract class AbstractBlockChain {
             // are only lightly verified: presence in a valid connecting block is taken as proof of validity. See the
             // article here for more details: http://code.google.com/p/bitcoincoinj/wiki/SecurityModel
             try {
-                block.verifyHeader();
-                if (contentsImportant)
-                    block.verifyTransactions();
+                verifyBlock(block, contentsImportant);
             } catch (VerificationException e) {
                 log.error("Failed to verify block: ", e);
                 log.error(block.getHashAsString());
@@ -407,6 +409,16 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Checks the block's header and, if its contents are important, its transactions. Called with the lock held.
+     * Subclasses may skip checks they know to have been done already.
+     */
+    protected void verifyBlock(Block block, boolean contentsImportant) throws VerificationException {
+        block.verifyHeader();
+        if (contentsImportant)
+            block.verifyTransactions();
+    }
+
     // expensiveChecks enables checks that require looking at blocks further back in the chain
     // than the previous one when connecting (eg median timestamp check)
     // It could be exposed, but for now we just set it to shouldVerifyTransactions()
@@ -915,7 +927,6 @@ public abstract class AbstractBlockChain {
     private void DarkGravityWave(StoredBlock storedPrev, Block nextBlock) {
     /* current difficulty formula, limecoin - DarkGravity, written by Evan Duffield - evan@limecoin.io */
         StoredBlock BlockLastSolved = storedPrev;
-        StoredBlock BlockReading = storedPrev;
         Block BlockCreating = nextBlock;
         //BlockCreating = BlockCreating;
         long nBlockTimeAverage = 0;
@@ -934,7 +945,17 @@ public abstract class AbstractBlockChain {
         if (BlockLastSolved == null || BlockLastSolved.getHeight() == 0 || (long)BlockLastSolved.getHeight() < PastBlocksMin)
         { verifyDifficulty(params.getProofOfWorkLimit(), storedPrev, nextBlock); }
 
-        for (int i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
+        DifficultyWindow.Entry BlockReading;
+        try {
+            difficultyWindow.moveTo(storedPrev);
+            BlockReading = difficultyWindow.get(0, blockStore);
+        }
+        catch(BlockStoreException x)
+        {
+            return;
+        }
+
+        for (int i = 1; BlockReading != null && BlockReading.height > 0; i++) {
             if (PastBlocksMax > 0 && i > PastBlocksMax)
             {
                 break;
@@ -942,18 +963,18 @@ public abstract class AbstractBlockChain {
             CountBlocks++;
 
             if(CountBlocks <= PastBlocksMin) {
-                if (CountBlocks == 1) { PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger(); }
+                if (CountBlocks == 1) { PastDifficultyAverage = BlockReading.getTarget(); }
                 else
                 {
                     //PastDifficultyAverage = ((CBigNum().SetCompact(BlockReading->nBits) - PastDifficultyAveragePrev) / CountBlocks) + PastDifficultyAveragePrev;
-                    PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger().subtract(PastDifficultyAveragePrev).divide(BigInteger.valueOf(CountBlocks)).add(PastDifficultyAveragePrev);
+                    PastDifficultyAverage = BlockReading.getTarget().subtract(PastDifficultyAveragePrev).divide(BigInteger.valueOf(CountBlocks)).add(PastDifficultyAveragePrev);
 
                 }
                 PastDifficultyAveragePrev = PastDifficultyAverage;
             }
 
             if(LastBlockTime > 0){
-                long Diff = (LastBlockTime - BlockReading.getHeader().getTimeSeconds());
+                long Diff = (LastBlockTime - BlockReading.time);
                 //if(Diff < 0)
                 //   Diff = 0;
                 if(nBlockTimeCount <= PastBlocksMin) {
@@ -966,11 +987,11 @@ public abstract class AbstractBlockChain {
                 nBlockTimeCount2++;
                 nBlockTimeSum2 += Diff;
             }
-            LastBlockTime = BlockReading.getHeader().getTimeSeconds();
+            LastBlockTime = BlockReading.time;
 
             //if (BlockReading->pprev == NULL)
             try {
-                StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
+                DifficultyWindow.Entry BlockReadingPrev = difficultyWindow.get(i, blockStore);
                 if (BlockReadingPrev == null)
                 {
                     //assert(BlockReading); break;
@@ -1015,11 +1036,6 @@ public abstract class AbstractBlockChain {
     private void DarkGravityWave3(StoredBlock storedPrev, Block nextBlock) {
         /* current difficulty formula, bit - DarkGravity v3, written by Evan Duffield - evan@bit.io */
         StoredBlock BlockLastSolved = storedPrev;
-        StoredBlock BlockReading = storedPrev;
-        Block BlockCreating = nextBlock;
-        BlockCreating = BlockCreating;
-        long nActualTimespan = 0;
-        long LastBlockTime = 0;
         long PastBlocksMin = 24;
         long PastBlocksMax = 24;
         long CountBlocks = 0;
@@ -1031,36 +1047,40 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        for (int i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
-            if (PastBlocksMax > 0 && i > PastBlocksMax) { break; }
-            CountBlocks++;
-
-            if(CountBlocks <= PastBlocksMin) {
-                if (CountBlocks == 1) { PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger(); }
-                else { PastDifficultyAverage = ((PastDifficultyAveragePrev.multiply(BigInteger.valueOf(CountBlocks)).add(BlockReading.getHeader().getDifficultyTargetAsInteger()).divide(BigInteger.valueOf(CountBlocks + 1)))); }
-                PastDifficultyAveragePrev = PastDifficultyAverage;
-            }
+        long nActualTimespan = 0;
+        long LastBlockTime = 0;
+        DifficultyWindow.Entry BlockReading;
+        try {
+            difficultyWindow.moveTo(storedPrev);
+            BlockReading = difficultyWindow.get(0, blockStore);
+            for (int i = 1; BlockReading != null && BlockReading.height > 0; i++) {
+                if (PastBlocksMax > 0 && i > PastBlocksMax) { break; }
+                CountBlocks++;
+
+                if(CountBlocks <= PastBlocksMin) {
+                    if (CountBlocks == 1) { PastDifficultyAverage = BlockReading.getTarget(); }
+                    else { PastDifficultyAverage = ((PastDifficultyAveragePrev.multiply(BigInteger.valueOf(CountBlocks)).add(BlockReading.getTarget()).divide(BigInteger.valueOf(CountBlocks + 1)))); }
+                    PastDifficultyAveragePrev = PastDifficultyAverage;
+                }
 
-            if(LastBlockTime > 0){
-                long Diff = (LastBlockTime - BlockReading.getHeader().getTimeSeconds());
-                nActualTimespan += Diff;
-            }
-            LastBlockTime = BlockReading.getHeader().getTimeSeconds();
+                if(LastBlockTime > 0){
+                    long Diff = (LastBlockTime - BlockReading.time);
+                    nActualTimespan += Diff;
+                }
+                LastBlockTime = BlockReading.time;
 
-            try {
-                StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
-                if (BlockReadingPrev == null)
+                BlockReading = difficultyWindow.get(i, blockStore);
+                if (BlockReading == null)
                 {
                     //assert(BlockReading); break;
                     return;
                 }
-                BlockReading = BlockReadingPrev;
-            }
-            catch(BlockStoreException x)
-            {
-                return;
             }
         }
+        catch(BlockStoreException x)
+        {
+            return;
+        }
 
         BigInteger bnNew= PastDifficultyAverage;
 
@@ -1194,7 +1214,6 @@ public abstract class AbstractBlockChain {
         //const CBlockIndex  *BlockReading				= pindexLast;
         //const CBlockHeader *BlockCreating				= pblock;
         StoredBlock         BlockLastSolved             = storedPrev;
-        StoredBlock         BlockReading                = storedPrev;
         Block               BlockCreating               = nextBlock;
 
         BlockCreating				= BlockCreating;
@@ -1216,24 +1235,26 @@ public abstract class AbstractBlockChain {
         int i = 0;
         long LatestBlockTime = BlockLastSolved.getHeader().getTimeSeconds();
 
-        for (i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
+        difficultyWindow.moveTo(storedPrev);
+        DifficultyWindow.Entry BlockReading = difficultyWindow.get(0, blockStore);
+        for (i = 1; BlockReading != null && BlockReading.height > 0; i++) {
             if (PastBlocksMax > 0 && i > PastBlocksMax) { break; }
             PastBlocksMass++;
 
-            if (i == 1)	{ PastDifficultyAverage = BlockReading.getHeader().getDifficultyTargetAsInteger(); }
-            else		{ PastDifficultyAverage = ((BlockReading.getHeader().getDifficultyTargetAsInteger().subtract(PastDifficultyAveragePrev)).divide(BigInteger.valueOf(i)).add(PastDifficultyAveragePrev)); }
+            if (i == 1)	{ PastDifficultyAverage = BlockReading.getTarget(); }
+            else		{ PastDifficultyAverage = ((BlockReading.getTarget().subtract(PastDifficultyAveragePrev)).divide(BigInteger.valueOf(i)).add(PastDifficultyAveragePrev)); }
             PastDifficultyAveragePrev = PastDifficultyAverage;
 
 
-            if (BlockReading.getHeight() > 646120 && LatestBlockTime < BlockReading.getHeader().getTimeSeconds()) {
+            if (BlockReading.height > 646120 && LatestBlockTime < BlockReading.time) {
                 //eliminates the ability to go back in time
-                LatestBlockTime = BlockReading.getHeader().getTimeSeconds();
+                LatestBlockTime = BlockReading.time;
             }
 
-            PastRateActualSeconds			= BlockLastSolved.getHeader().getTimeSeconds() - BlockReading.getHeader().getTimeSeconds();
+            PastRateActualSeconds			= BlockLastSolved.getHeader().getTimeSeconds() - BlockReading.time;
             PastRateTargetSeconds			= TargetBlocksSpacingSeconds * PastBlocksMass;
             PastRateAdjustmentRatio			= 1.0f;
-            if (BlockReading.getHeight() > 646120){
+            if (BlockReading.height > 646120){
                 //this should slow down the upward difficulty change
                 if (PastRateActualSeconds < 5) { PastRateActualSeconds = 5; }
             }
@@ -1254,7 +1275,7 @@ public abstract class AbstractBlockChain {
                     break;
                 }
             }
-            StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
+            DifficultyWindow.Entry BlockReadingPrev = difficultyWindow.get(i, blockStore);
             if (BlockReadingPrev == null)
             {
                 //assert(BlockReading);
@@ -45,6 +45,8 @@ import static com.google.bitcoin.core.Utils.*;
 public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    /** Size of the header that precedes every message on the wire: magic, command, payload length and checksum. */
+    public static final int HEADER_SIZE = 4 + COMMAND_LEN + 4 + 4;
 
     private NetworkParameters params;
     private boolean parseLazy = false;
@@ -98,19 +100,8 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(name, message, header);
         out.write(header);
         out.write(message);
 
@@ -122,11 +113,48 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getName(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns the message framed for the wire, ie the header followed by the payload, in a single array which is
+     * allocated at exactly the right size. The payload is copied once, straight from the message's own serialization.
+     */
+    public byte[] serialize(Message message) {
+        String name = getName(message);
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] packet = new byte[HEADER_SIZE + payload.length];
+        writeHeader(name, payload, packet);
+        System.arraycopy(payload, 0, packet, HEADER_SIZE, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(packet));
+        return packet;
+    }
+
+    private String getName(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    /** Fills in the first {@link #HEADER_SIZE} bytes of the given array with the header for the given payload. */
+    private void writeHeader(String name, byte[] message, byte[] header) {
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+
+        byte[] hash = new byte[32];
+        doubleDigest(message, 0, message.length, hash, 0);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
     }
 
     /**
@@ -22,7 +22,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.hashengineering.crypto.X11;
-import com.sun.xml.internal.ws.api.config.management.policy.ManagedServiceAssertion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -141,6 +140,16 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Constructs a block from the Bitcoin wire format whose hash was kept alongside it in storage, so it doesn't have
+     * to be calculated again. The block is fully parsed before this returns.
+     */
+    Block(NetworkParameters params, byte[] payloadBytes, Sha256Hash knownHash) throws ProtocolException {
+        super(params, payloadBytes, 0, true, false, payloadBytes.length);
+        this.hash = knownHash;
+        ensureParsed();
+    }
+
 
     /**
      * Construct a block initialized with all the given fields.
@@ -201,7 +210,10 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(x11Digest(bytes, offset, cursor)));
+        // The hash may already be known, either because getHash() was called before the header was parsed or because
+        // it was supplied by whoever stored the header. Either way it was derived from these same bytes.
+        if (hash == null)
+            hash = calculateHash(bytes, offset);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -626,12 +638,27 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(x11Digest(bos.toByteArray())));
+            return calculateHash(bos.toByteArray(), 0);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
     }
 
+    /**
+     * Hashes the 80 byte header found at the given offset, reversing the digest in place so the only allocation is
+     * the array backing the returned hash.
+     */
+    private static Sha256Hash calculateHash(byte[] header, int offset) {
+        byte[] digest = new byte[32];
+        x11Digest(header, offset, HEADER_SIZE, digest, 0);
+        for (int i = 0, j = digest.length - 1; i < j; i++, j--) {
+            byte b = digest[i];
+            digest[i] = digest[j];
+            digest[j] = b;
+        }
+        return new Sha256Hash(digest);
+    }
+
     private Sha256Hash calculateScryptHash() {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
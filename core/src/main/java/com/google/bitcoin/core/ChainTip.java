@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>The head of the best chain as a {@link Wallet} last saw it. The confidences of the wallet's transactions keep a
+ * reference to it and work out their depth and work done from how far it has moved since they were last set, so a new
+ * block costs the wallet one update here rather than one per transaction.</p>
+ *
+ * <p>A wallet read back from disk knows the height of its last block but not the chain work up to it. Until a block
+ * arrives to tell, positions taken have no chain work, and are taken to be where the wallet was when it was loaded.</p>
+ *
+ * <p>Confidences with listeners of their own are watched, so that they can be told when their depth changes.</p>
+ */
+final class ChainTip {
+    /** A place on the chain. */
+    static final class Position {
+        final int height;
+        @Nullable final BigInteger chainWork;
+
+        Position(int height, @Nullable BigInteger chainWork) {
+            this.height = height;
+            this.chainWork = chainWork;
+        }
+    }
+
+    private volatile Position head = new Position(-1, null);
+    // Where the wallet was when loaded, which positions without a height or chain work refer to.
+    private volatile int initialHeight = -1;
+    @Nullable private volatile BigInteger initialChainWork;
+
+    private final Set<TransactionConfidence> watched =
+            Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<TransactionConfidence, Boolean>()));
+
+    Position getHead() {
+        return head;
+    }
+
+    /** Moves the tip to the given block, which may be behind the current one on a re-org. */
+    synchronized void setHead(StoredBlock block) {
+        BigInteger chainWork = block.getChainWork();
+        if (initialChainWork == null) {
+            // Estimate the chain work at the height the wallet was loaded at from the first block seen since.
+            BigInteger work = block.getHeader().getWork();
+            int blocksSince = initialHeight < 0 ? 0 : Math.max(0, block.getHeight() - initialHeight);
+            initialChainWork = chainWork.subtract(work.multiply(BigInteger.valueOf(blocksSince))).max(BigInteger.ZERO);
+            if (initialHeight < 0)
+                initialHeight = block.getHeight();
+        }
+        head = new Position(block.getHeight(), chainWork);
+    }
+
+    /** Sets the height of the tip for a wallet that hasn't seen a block since being loaded. */
+    synchronized void setHeight(int height) {
+        if (initialChainWork != null)
+            return;
+        initialHeight = height;
+        head = new Position(height, null);
+    }
+
+    /** Returns how many blocks the tip has moved past the given position, which is negative if it's behind it. */
+    int blocksSince(Position position) {
+        int height = position.height >= 0 ? position.height : initialHeight;
+        Position head = this.head;
+        if (height < 0 || head.height < 0)
+            return 0;
+        return head.height - height;
+    }
+
+    /** Returns how much work has been done on top of the given position, or zero if it isn't known. */
+    BigInteger workSince(Position position) {
+        BigInteger work = position.chainWork != null ? position.chainWork : initialChainWork;
+        Position head = this.head;
+        if (work == null || head.chainWork == null)
+            return BigInteger.ZERO;
+        return head.chainWork.subtract(work);
+    }
+
+    void watch(TransactionConfidence confidence) {
+        watched.add(confidence);
+    }
+
+    void unwatch(TransactionConfidence confidence) {
+        watched.remove(confidence);
+    }
+
+    /** Returns the confidences with listeners of their own. */
+    List<TransactionConfidence> getWatched() {
+        synchronized (watched) {
+            return new ArrayList<TransactionConfidence>(watched);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers the time and difficulty target of the most recent blocks leading up to a chain tip, so the difficulty
+ * algorithms in {@link AbstractBlockChain} don't have to fetch and decode the same ancestors from the block store
+ * again for every new block.</p>
+ *
+ * <p>Moving the tip onto a child of the current tip, or back to a block already in the window, costs O(1) per block
+ * connected or disconnected. Moving it anywhere else, eg onto a side chain, empties the window. Older entries are
+ * then loaded from the store lazily as {@link #get(int, BlockStore)} asks for them.</p>
+ *
+ * <p>Not thread safe, the block chain only touches it with its lock held.</p>
+ */
+class DifficultyWindow {
+    /** What the difficulty algorithms need to know about a block. */
+    static class Entry {
+        final Sha256Hash hash;
+        final Sha256Hash prevHash;
+        final int height;
+        final long time;
+        private final Block header;
+        private BigInteger target;
+
+        Entry(StoredBlock block) {
+            this.header = block.getHeader();
+            this.hash = header.getHash();
+            this.prevHash = header.getPrevBlockHash();
+            this.height = block.getHeight();
+            this.time = header.getTimeSeconds();
+        }
+
+        /** Returns the decoded difficulty target, see {@link Block#getDifficultyTargetAsInteger()}. */
+        BigInteger getTarget() throws VerificationException {
+            if (target == null)
+                target = header.getDifficultyTargetAsInteger();
+            return target;
+        }
+    }
+
+    // Circular buffer. The tip is at head, the block i back from the tip is at (head - i) mod capacity.
+    private final Entry[] entries;
+    private int head;
+    private int size;
+    // Set when the store didn't have the parent of the oldest entry, so there is no point asking it again.
+    private boolean exhausted;
+
+    /** Creates a window that can hold the given number of blocks, counting the tip. */
+    DifficultyWindow(int capacity) {
+        checkArgument(capacity > 0);
+        entries = new Entry[capacity];
+    }
+
+    /** Makes the given block the tip of the window. */
+    void moveTo(StoredBlock tip) {
+        Sha256Hash tipHash = tip.getHeader().getHash();
+        if (size > 0) {
+            Entry current = entries[head];
+            if (current.hash.equals(tipHash))
+                return;
+            if (current.hash.equals(tip.getHeader().getPrevBlockHash())) {
+                push(new Entry(tip));
+                return;
+            }
+            int back = current.height - tip.getHeight();
+            if (back > 0 && back < size && entries[index(back)].hash.equals(tipHash)) {
+                // Blocks were disconnected, drop them.
+                for (int i = 0; i < back; i++)
+                    entries[index(i)] = null;
+                head = index(back);
+                size -= back;
+                return;
+            }
+        }
+        clear();
+        push(new Entry(tip));
+    }
+
+    /**
+     * Returns the block i back from the tip, so zero is the tip itself, loading it from the store if needed. Returns
+     * null if the store doesn't have it or it would be before the genesis block.
+     */
+    @Nullable
+    Entry get(int i, BlockStore store) throws BlockStoreException {
+        checkArgument(i >= 0 && i < entries.length, "Window too small: %s", i);
+        while (i >= size) {
+            Entry oldest = entries[index(size - 1)];
+            if (exhausted || oldest.height == 0)
+                return null;
+            StoredBlock prev = store.get(oldest.prevHash);
+            if (prev == null) {
+                exhausted = true;
+                return null;
+            }
+            entries[index(size)] = new Entry(prev);
+            size++;
+        }
+        return entries[index(i)];
+    }
+
+    private void push(Entry entry) {
+        head = (head + 1) % entries.length;
+        if (size == entries.length)
+            exhausted = false;  // Overwriting the oldest entry, whose parent we did have.
+        else
+            size++;
+        entries[head] = entry;
+    }
+
+    private void clear() {
+        for (int i = 0; i < size; i++)
+            entries[index(i)] = null;
+        size = 0;
+        exhausted = false;
+    }
+
+    private int index(int back) {
+        return (head - back + entries.length) % entries.length;
+    }
+}
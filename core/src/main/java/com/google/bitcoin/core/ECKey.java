@@ -112,6 +112,8 @@ public class ECKey implements Serializable {
 
     // Transient because it's calculated on demand.
     transient private byte[] pubKeyHash;
+    // The decoded public key, cached as decoding the point is a significant part of the cost of verifying.
+    transient private ECPublicKeyParameters pubKeyParams;
 
     /**
      * Generates an entirely new keypair. Point compression is used so the resulting public key will be 33 bytes
@@ -489,8 +491,11 @@ public class ECKey implements Serializable {
         if (NativeSecp256k1.enabled)
             return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
 
+        return verify(data, signature, new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE));
+    }
+
+    private static boolean verify(byte[] data, ECDSASignature signature, ECPublicKeyParameters params) {
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
         signer.init(false, params);
         try {
             return signer.verifySignature(data, signature.r, signature.s);
@@ -530,7 +535,12 @@ public class ECKey implements Serializable {
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        if (FAKE_SIGNATURES || NativeSecp256k1.enabled)
+            return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        ECPublicKeyParameters params = pubKeyParams;
+        if (params == null)
+            pubKeyParams = params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
+        return verify(sigHash.getBytes(), signature, params);
     }
 
     /**
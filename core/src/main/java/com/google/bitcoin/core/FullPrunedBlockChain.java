@@ -19,15 +19,14 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -49,6 +48,19 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // How many blocks addAll checks ahead of the one being connected, and how many of those have their scripts run.
+    private static final int PIPELINE_DEPTH = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int SCRIPT_PIPELINE_DEPTH = 4;
+
+    // Blocks and transactions addAll has already checked, so connecting them needn't do it again. Compared by identity
+    // as it's the objects that were checked.
+    private final Set<Block> verifiedBlocks =
+            Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>()));
+    private final Map<Transaction, ScriptVerifier.Batch> verifiedScripts =
+            Collections.synchronizedMap(new IdentityHashMap<Transaction, ScriptVerifier.Batch>());
+
+    private final ScriptVerifier scriptVerifier = new ScriptVerifier(Threading.CPU_POOL);
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -110,35 +122,185 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    @Override
+    protected void verifyBlock(Block block, boolean contentsImportant) throws VerificationException {
+        if (!verifiedBlocks.remove(block))
+            super.verifyBlock(block, contentsImportant);
+    }
 
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
+    /** A block making its way through {@link FullPrunedBlockChain#addAll(Iterable)}. */
+    private static class PipelinedBlock {
+        final Block block;
+        // Whether the block passed the checks that need nothing but the block itself.
+        final Future<Boolean> checks;
+        // Script runs started ahead of connecting the block, if any.
+        @Nullable ScriptVerifier.Batch scripts;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+        PipelinedBlock(final Block block) {
+            this.block = block;
+            this.checks = Threading.CPU_POOL.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        block.verifyHeader();
+                        block.verifyTransactions();
+                        return true;
+                    } catch (VerificationException e) {
+                        // add() checks it again and reports the failure.
+                        return false;
+                    }
+                }
+            });
         }
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+    /**
+     * <p>Adds the given blocks in order, exactly as calling {@link #add(Block)} on each would, but keeps all processors
+     * busy whilst doing so. This is meant for catching up with the chain from a source like
+     * {@link com.google.bitcoin.utils.BlockFileLoader}.</p>
+     *
+     * <p>The checks that need nothing but the block itself, like the proof of work and merkle root, are done on
+     * {@link Threading#CPU_POOL} for the blocks coming up. Their inputs are looked up before each block is connected and
+     * their scripts run whilst the blocks before them are connected, so that connecting a block rarely has to wait for
+     * its signatures.</p>
+     *
+     * <p>All this is only done ahead of time and the chain is changed by add(Block) alone. Anything that couldn't be
+     * done ahead, like running the scripts of a transaction spending an output that wasn't found, is simply done when
+     * the block is connected. If a block is rejected, work done for the ones after it is thrown away before the
+     * exception is passed on, leaving the chain as it would be had the blocks been added one at a time.</p>
+     *
+     * <p>The blocks mustn't be used by any other thread until this returns.</p>
+     */
+    public void addAll(Iterable<Block> blocks) throws VerificationException, PrunedException {
+        Iterator<Block> it = blocks.iterator();
+        LinkedList<PipelinedBlock> pipeline = new LinkedList<PipelinedBlock>();
+        // Outputs created by blocks whose scripts have been started but which aren't connected yet.
+        Map<TransactionOutPoint, byte[]> pendingOutputs = new HashMap<TransactionOutPoint, byte[]>();
+        int started = 0;
+        try {
+            while (true) {
+                while (pipeline.size() < PIPELINE_DEPTH && it.hasNext())
+                    pipeline.add(new PipelinedBlock(it.next()));
+                if (pipeline.isEmpty())
+                    break;
+                for (; started < Math.min(SCRIPT_PIPELINE_DEPTH, pipeline.size()); started++)
+                    startScripts(pipeline.get(started), pendingOutputs);
+                PipelinedBlock next = pipeline.removeFirst();
+                started--;
+                // Running a script modifies the transaction, so they must be done before it's connected.
+                if (next.scripts != null)
+                    next.scripts.awaitQuietly();
+                try {
+                    add(next.block);
+                } finally {
+                    forget(next, pendingOutputs);
+                }
+            }
+        } finally {
+            for (PipelinedBlock discarded : pipeline) {
+                awaitQuietly(discarded.checks);
+                if (discarded.scripts != null)
+                    discarded.scripts.awaitQuietly();
+                forget(discarded, pendingOutputs);
+            }
+        }
+    }
+
+    /** Starts running the scripts of a block in the pipeline, once its own checks have passed. */
+    private void startScripts(PipelinedBlock pipelined, Map<TransactionOutPoint, byte[]> pendingOutputs) {
+        Block block = pipelined.block;
+        Boolean checked;
+        try {
+            checked = Uninterruptibles.getUninterruptibly(pipelined.checks);
+        } catch (ExecutionException e) {
+            checked = false;
+        }
+        if (!checked)
+            return;
+        verifiedBlocks.add(block);
+        if (!runScripts)
+            return;
+        for (Transaction tx : block.transactions) {
+            for (TransactionOutput out : tx.getOutputs())
+                pendingOutputs.put(new TransactionOutPoint(params, out.getIndex(), tx.getHash()), out.getScriptBytes());
+        }
+        // Outputs created earlier in the pipeline aren't in the store yet, so only the others are looked up. The lock
+        // keeps this from seeing a half done batch written by another thread.
+        List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : block.transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs()) {
+                if (!pendingOutputs.containsKey(in.getOutpoint()))
+                    outpoints.add(in.getOutpoint());
+            }
+        }
+        Map<TransactionOutPoint, byte[]> storedOutputs = new HashMap<TransactionOutPoint, byte[]>(outpoints.size());
+        lock.lock();
+        try {
+            List<StoredTransactionOutput> prevOuts = blockStore.getTransactionOutputs(outpoints);
+            for (int i = 0; i < outpoints.size(); i++) {
+                if (prevOuts.get(i) != null)
+                    storedOutputs.put(outpoints.get(i), prevOuts.get(i).getScriptBytes());
+            }
+        } catch (BlockStoreException e) {
+            // Connecting the block will run into it again.
+            log.warn("Could not look up outputs ahead of connecting block " + block.getHashAsString(), e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+        // As an outpoint always refers to the same output, the scripts it was spending are the same when it's connected,
+        // whether or not they are still unspent by then.
+        final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
+        pipelined.scripts = scriptVerifier.newBatch("block " + block.getHashAsString() + " ahead of connecting it");
+        nextTransaction:
+        for (Transaction tx : block.transactions) {
+            if (tx.isCoinBase())
+                continue;
+            List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
+            for (TransactionInput in : tx.getInputs()) {
+                byte[] scriptBytes = pendingOutputs.get(in.getOutpoint());
+                if (scriptBytes == null)
+                    scriptBytes = storedOutputs.get(in.getOutpoint());
+                if (scriptBytes == null)
+                    continue nextTransaction;
+                try {
+                    prevOutScripts.add(new Script(scriptBytes));
+                } catch (ScriptException e) {
+                    continue nextTransaction;
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
+            try {
+                pipelined.scripts.verify(tx, prevOutScripts, enforcePayToScriptHash);
+            } catch (ScriptException e) {
+                continue;
+            }
+            verifiedScripts.put(tx, pipelined.scripts);
         }
     }
+
+    /** Drops whatever was done ahead for a block once it has been added, or won't be. */
+    private void forget(PipelinedBlock pipelined, Map<TransactionOutPoint, byte[]> pendingOutputs) {
+        verifiedBlocks.remove(pipelined.block);
+        if (pipelined.block.transactions == null)
+            return;
+        for (Transaction tx : pipelined.block.transactions) {
+            verifiedScripts.remove(tx);
+            for (TransactionOutput out : tx.getOutputs())
+                pendingOutputs.remove(new TransactionOutPoint(params, out.getIndex(), tx.getHash()));
+        }
+    }
+
+    private static void awaitQuietly(Future<?> future) {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            // Whoever needs the result gets the exception from the future itself.
+        }
+    }
+
+    //TODO: Remove lots of duplicated code in the two connectTransactions
     
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
@@ -156,25 +318,47 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerifier.Batch scripts = scriptVerifier.newBatch("block " + block.getHashAsString());
+        // Batches addAll started for some of the transactions ahead of time.
+        Set<ScriptVerifier.Batch> scriptsAhead = new HashSet<ScriptVerifier.Batch>();
         try {
+            // Everything the block needs from the set of unspent outputs is asked for in one go, as a store backed by a
+            // database can answer that in a few round trips where one lookup per input would take thousands. That is
+            // the outputs the block creates, which mustn't be there already, followed by those it spends. Outputs
+            // spent within the block are resolved from those created earlier in it as we go.
+            List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>();
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
                 // BIP30 document for more details on this: https://github.com/bitcoin/bips/blob/master/bip-0030.mediawiki
                 for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
-                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-                    // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                        throw new VerificationException("Block failed BIP30 test!");
+                    for (int index = 0; index < tx.getOutputs().size(); index++)
+                        outpoints.add(new TransactionOutPoint(params, index, tx.getHash()));
                     if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
                         sigOps += tx.getSigOpCount();
                 }
             }
+            int numCreated = outpoints.size();
+            for (Transaction tx : block.transactions) {
+                if (!tx.isCoinBase()) {
+                    for (TransactionInput in : tx.getInputs())
+                        outpoints.add(in.getOutpoint());
+                }
+            }
+            List<StoredTransactionOutput> prevOuts = blockStore.getTransactionOutputs(outpoints);
+            // If we already have unspent outputs for the hash of a transaction, we saw the tx already. Either the block
+            // is being added twice (bug) or the block is a BIP30 violator.
+            for (int i = 0; i < numCreated; i++) {
+                if (prevOuts.get(i) != null)
+                    throw new VerificationException("Block failed BIP30 test!");
+            }
+            Map<TransactionOutPoint, StoredTransactionOutput> spendable =
+                    new HashMap<TransactionOutPoint, StoredTransactionOutput>(outpoints.size() - numCreated);
+            for (int i = numCreated; i < outpoints.size(); i++) {
+                if (prevOuts.get(i) != null)
+                    spendable.put(outpoints.get(i), prevOuts.get(i));
+            }
+
             BigInteger totalFees = BigInteger.ZERO;
             BigInteger coinbaseValue = null;
             for (final Transaction tx : block.transactions) {
@@ -187,8 +371,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        // Removed so that a second spend of it in this block fails.
+                        StoredTransactionOutput prevOut = spendable.remove(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -198,14 +382,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
                         // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
                         valueIn = valueIn.add(prevOut.getValue());
+                        Script prevOutScript = new Script(prevOut.getScriptBytes());
                         if (enforcePayToScriptHash) {
-                            if (new Script(prevOut.getScriptBytes()).isPayToScriptHash())
+                            if (prevOutScript.isPayToScriptHash())
                                 sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
                             if (sigOps > Block.MAX_BLOCK_SIGOPS)
                                 throw new VerificationException("Too many P2SH SigOps in block");
                         }
                         
-                        prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+                        prevOutScripts.add(prevOutScript);
                         
                         //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
                         
@@ -221,6 +406,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             height, isCoinBase, out.getScriptBytes());
                     blockStore.addUnspentTransactionOutput(newOut);
                     txOutsCreated.add(newOut);
+                    spendable.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
                 // but we check again here just for defence in depth. Transactions with zero output value are OK.
@@ -235,33 +421,29 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    // Scripts addAll ran ahead of time needn't be run again.
+                    ScriptVerifier.Batch ahead = verifiedScripts.remove(tx);
+                    if (ahead != null) {
+                        scriptsAhead.add(ahead);
+                    } else {
+                        // Because correctlySpends modifies transactions, this must come after we are done with tx
+                        scripts.verify(tx, prevOutScripts, enforcePayToScriptHash);
+                    }
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scripts.await();
+            for (ScriptVerifier.Batch ahead : scriptsAhead)
+                ahead.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
+            scripts.awaitQuietly();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
+            scripts.awaitQuietly();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -286,6 +468,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerifier.Batch scripts = scriptVerifier.newBatch("block " + newBlock.getHeader().getHashAsString());
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -303,9 +486,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
                 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
@@ -358,28 +538,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scripts.verify(tx, prevOutScripts, enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scripts.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -394,11 +560,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
+            scripts.awaitQuietly();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scripts.cancel();
+            scripts.awaitQuietly();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
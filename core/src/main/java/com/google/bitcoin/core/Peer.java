@@ -250,15 +250,21 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
-        for (final PeerListenerRegistration registration : eventListeners) {
-            if (registration.callOnDisconnect)
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onPeerDisconnected(Peer.this, 0);
-                    }
-                });
-        }
+        // Messages may still be waiting for the message executor, the disconnect mustn't be seen before them.
+        runAfterReceivedMessages(new Runnable() {
+            @Override
+            public void run() {
+                for (final PeerListenerRegistration registration : eventListeners) {
+                    if (registration.callOnDisconnect)
+                        registration.executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                registration.listener.onPeerDisconnected(Peer.this, 0);
+                            }
+                        });
+                }
+            }
+        });
     }
 
     @Override
@@ -463,6 +469,8 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            // Hash the whole batch across all cores first, so the serial linking below finds the hashes cached.
+            m.precomputeHeaderHashes(Threading.CPU_POOL);
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
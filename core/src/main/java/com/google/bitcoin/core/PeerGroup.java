@@ -250,6 +250,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
     private volatile int vConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    @Nullable private volatile Executor vMessageExecutor;
 
     /**
      * Creates a PeerGroup with the given parameters. No chain is provided so this node will report its chain height
@@ -891,6 +892,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        Executor messageExecutor = vMessageExecutor;
+        if (messageExecutor != null)
+            peer.setMessageExecutor(messageExecutor);
         pendingPeers.add(peer);
 
         try {
@@ -925,6 +929,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.vConnectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /**
+     * Makes peers connected from now on process the messages they receive on the given executor rather than on the
+     * network thread, see {@link PeerSocketHandler#setMessageExecutor(java.util.concurrent.Executor)}. Pass null to go
+     * back to processing them on the network thread.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
     /**
      * <p>Start downloading the blockchain from the first available peer.</p>
      *
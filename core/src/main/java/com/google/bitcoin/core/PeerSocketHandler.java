@@ -19,18 +19,20 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.net.AbstractTimeoutHandler;
 import com.google.bitcoin.net.MessageWriteTarget;
 import com.google.bitcoin.net.StreamParser;
+import com.google.bitcoin.utils.SerialExecutor;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -58,6 +60,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    // If set, messages are processed here rather than on the network thread. Runs one task at a time, in order.
+    @Nullable private volatile SerialExecutor messageExecutor;
+
+    /**
+     * How many received messages may wait to be processed on the executor given to
+     * {@link #setMessageExecutor(java.util.concurrent.Executor)} before the peer is disconnected.
+     */
+    public static final int MAX_QUEUED_MESSAGES = 1000;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
         this.peerAddress = new PeerAddress(remoteIp);
@@ -81,11 +92,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            // The serializer hands back a freshly allocated array, so the write target can queue it as is.
+            writeTarget.writeBytes(serializer.serialize(message));
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -118,6 +127,59 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * <p>Hands messages received from this peer to the given executor to be processed, instead of processing them on
+     * the network thread that read them. Many peers may share one executor: messages from any one peer are still
+     * processed one at a time and in the order they arrived, but a peer that is slow to process its messages no longer
+     * holds up the other peers on the same network thread.</p>
+     *
+     * <p>Must be called before the connection is opened. If the executor can't keep up and more than
+     * {@link #MAX_QUEUED_MESSAGES} messages from the peer are waiting to be processed, the peer is disconnected rather
+     * than letting it fill up memory.</p>
+     */
+    public void setMessageExecutor(Executor executor) {
+        lock.lock();
+        try {
+            checkState(writeTarget == null, "Already connected");
+            messageExecutor = new SerialExecutor(executor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the given task after any messages that were already received have been processed, in the same thread as
+     * them. Useful for events such as the connection closing which must not overtake the messages before them.
+     */
+    protected void runAfterReceivedMessages(Runnable task) {
+        SerialExecutor executor = messageExecutor;
+        if (executor == null)
+            task.run();
+        else
+            executor.execute(task);
+    }
+
+    private void dispatchMessage(final Message message) throws Exception {
+        SerialExecutor executor = messageExecutor;
+        if (executor == null) {
+            processMessage(message);
+            return;
+        }
+        if (executor.getQueuedTasks() >= MAX_QUEUED_MESSAGES)
+            throw new IOException("Disconnecting as " + MAX_QUEUED_MESSAGES +
+                    " received messages are waiting to be processed");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processMessage(message);
+                } catch (Exception e) {
+                    exceptionCaught(e);
+                }
+            }
+        });
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
@@ -136,7 +198,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        dispatchMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
                         largeReadBuffer = null;
                         header = null;
                     } else // ...or just returning if we don't have enough bytes yet
@@ -175,7 +237,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                dispatchMessage(message);
             }
         } catch (Exception e) {
             exceptionCaught(e);
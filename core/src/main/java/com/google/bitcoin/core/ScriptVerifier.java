@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Runs the scripts of transactions on a long lived pool of threads, one input per task, so that a block whose
+ * inputs are mostly in one big transaction is checked by every thread rather than one. Inputs are checked in
+ * {@link Batch}es, usually one per block, and the first to fail stops the rest of its batch from being run.</p>
+ *
+ * <p>Each input is checked against a copy of its transaction, as {@link Script#correctlySpends} makes one, so
+ * inputs of the same transaction can be checked at once. The transaction mustn't be changed until its batch is done.</p>
+ */
+class ScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerifier.class);
+
+    private final Executor executor;
+
+    /** The executor should be one that never blocks, such as {@link com.google.bitcoin.utils.Threading#CPU_POOL}. */
+    ScriptVerifier(Executor executor) {
+        this.executor = executor;
+    }
+
+    /** Starts a new batch of inputs, named by what they belong to when timings are logged. */
+    Batch newBatch(String name) {
+        return new Batch(name);
+    }
+
+    /** Inputs checked together, of which the first to fail fails them all. */
+    class Batch {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<VerificationException>();
+        // Time spent checking inputs, summed over all threads.
+        private final AtomicLong workNanos = new AtomicLong();
+        // Guarded by this.
+        private int inputs, pending;
+
+        private Batch(String name) {
+            this.name = name;
+        }
+
+        /** Starts checking every input of the transaction against the scripts of the outputs it spends, in order. */
+        void verify(final Transaction tx, List<Script> prevOutScripts, final boolean enforcePayToScriptHash)
+                throws ScriptException {
+            List<TransactionInput> txInputs = tx.getInputs();
+            checkArgument(txInputs.size() == prevOutScripts.size());
+            final Script[] scriptSigs = new Script[txInputs.size()];
+            for (int i = 0; i < scriptSigs.length; i++)
+                scriptSigs[i] = txInputs.get(i).getScriptSig();
+            // Serializing once here leaves nothing for the threads copying the transaction to cache.
+            tx.unsafeBitcoinSerialize();
+            synchronized (this) {
+                inputs += scriptSigs.length;
+                pending += scriptSigs.length;
+            }
+            Iterator<Script> prevOutIt = prevOutScripts.iterator();
+            for (int i = 0; i < scriptSigs.length; i++) {
+                final int index = i;
+                final Script scriptSig = scriptSigs[i];
+                final Script prevOutScript = prevOutIt.next();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (failure.get() == null) {
+                                long start = System.nanoTime();
+                                try {
+                                    scriptSig.correctlySpends(tx, index, prevOutScript, enforcePayToScriptHash);
+                                } finally {
+                                    workNanos.addAndGet(System.nanoTime() - start);
+                                }
+                            }
+                        } catch (VerificationException e) {
+                            failure.compareAndSet(null, e);
+                        } catch (Throwable e) {
+                            // Errors too, like an AssertionError from a script reaching code thought unreachable, as
+                            // the block mustn't be accepted unless every input was checked.
+                            log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                            failure.compareAndSet(null, new VerificationException(
+                                    "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+                        } finally {
+                            done();
+                        }
+                    }
+                });
+            }
+        }
+
+        private synchronized void done() {
+            if (--pending == 0)
+                notifyAll();
+        }
+
+        /** Stops any inputs not yet being checked from being checked, as if one had failed. */
+        void cancel() {
+            failure.compareAndSet(null, new VerificationException("Script verification cancelled"));
+        }
+
+        /**
+         * Waits until no input is being checked any more, then throws the first failure if there was one. Once an
+         * input has failed the others are skipped, so this returns quickly.
+         */
+        void await() throws VerificationException {
+            awaitQuietly();
+            VerificationException e = failure.get();
+            if (e != null)
+                throw e;
+            if (log.isDebugEnabled()) {
+                long wallMillis = (System.nanoTime() - startNanos) / 1000000;
+                log.debug("Verified {} inputs of {} in {} ms, {} ms of work", new Object[] {
+                        inputs, name, wallMillis, workNanos.get() / 1000000 });
+            }
+        }
+
+        /** Like {@link #await()} but doesn't throw failures. */
+        void awaitQuietly() {
+            boolean interrupted = false;
+            synchronized (this) {
+                while (pending > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -143,6 +143,23 @@ public class StoredBlock implements Serializable {
         return new StoredBlock(new Block(params, header), chainWork, height);
     }
 
+    /**
+     * De-serializes the stored block from a custom packed format, trusting the given hash for the header instead of
+     * running the proof of work hash function over it again. Used by block stores that keep the hash of each block
+     * alongside its record.
+     */
+    public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer, Sha256Hash knownHash)
+            throws ProtocolException {
+        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        buffer.get(chainWorkBytes);
+        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
+        int height = buffer.getInt();  // +4 bytes
+        byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
+        buffer.get(header, 0, Block.HEADER_SIZE);
+        // Parsed up front, as block stores share these between threads.
+        return new StoredBlock(new Block(params, header, knownHash), chainWork, height);
+    }
+
     @Override
     public String toString() {
         return String.format("Block %s at height %d: %s",
@@ -164,6 +164,30 @@ public class Transaction extends ChildMessage implements Serializable {
         length = 8; //8 for std fields
     }
 
+    /**
+     * Creates a transaction from the given inputs and outputs, which must have been created without a parent
+     * transaction, and takes the given hash for it rather than serializing and hashing it. Used to read back
+     * transactions from storage that keeps the hash of each transaction alongside it, like the wallet does.
+     *
+     * No verification is performed on this hash. Changing the transaction afterwards drops it as usual.
+     */
+    public Transaction(NetworkParameters params, List<TransactionInput> inputs, List<TransactionOutput> outputs,
+                       long lockTime, Sha256Hash knownHash) {
+        this(params);
+        for (TransactionInput input : inputs) {
+            checkArgument(input.getParentTransaction() == null, "Input already belongs to a transaction");
+            input.setParentTransaction(this);
+            addInput(input);
+        }
+        for (TransactionOutput output : outputs) {
+            checkArgument(output.parentTransaction == null, "Output already belongs to a transaction");
+            output.parentTransaction = this;
+            addOutput(output);
+        }
+        setLockTime(lockTime);
+        this.hash = checkNotNull(knownHash);
+    }
+
     /**
      * Creates a transaction from the given serialized bytes, eg, from a block or a tx network message.
      */
@@ -317,15 +341,12 @@ public class Transaction extends ChildMessage implements Serializable {
         addBlockAppearance(block.getHeader().getHash(), relativityOffset);
 
         if (bestChain) {
-            TransactionConfidence transactionConfidence = getConfidence();
-            // Reset the work done.
+            // This sets type to BUILDING, depth to one and the work done to that of the block.
             try {
-                transactionConfidence.setWorkDone(block.getHeader().getWork());
+                getConfidence().setAppearedInBlock(block);
             } catch (VerificationException e) {
                 throw new RuntimeException(e);  // Cannot happen.
             }
-            // This sets type to BUILDING and depth to one.
-            transactionConfidence.setAppearedAtChainHeight(block.getHeight());
         }
     }
 
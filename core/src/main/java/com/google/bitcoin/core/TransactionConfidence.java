@@ -23,6 +23,9 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ListIterator;
@@ -53,8 +56,9 @@ import java.util.concurrent.Executor;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * <p>The depth and work done of a transaction in a {@link Wallet} are worked out when asked for, from the block it
+ * appeared in and the wallet's view of the best chain, so they are always up to date. Otherwise they can be updated via
+ * the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)} method.</p>
  * To make a copy that won't be changed, use {@link com.google.bitcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -75,6 +79,10 @@ public class TransactionConfidence implements Serializable {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // The chain tip of the wallet holding the transaction, if any. The depth and work done above are then as of ref,
+    // and grow by however far the tip has moved on since.
+    @Nullable private transient ChainTip tip;
+    @Nullable private transient ChainTip.Position ref;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -177,6 +185,12 @@ public class TransactionConfidence implements Serializable {
         public void onConfidenceChanged(Transaction tx, ChangeReason reason);
     }
 
+    /**
+     * Implemented by the listener a {@link Wallet} registers on each of its transactions for its own use, which isn't
+     * interested in changes of depth. Other listeners are told about those.
+     */
+    interface WalletListener extends Listener {}
+
     /**
      * <p>Adds an event listener that will be run when this confidence object is updated. The listener will be locked and
      * is likely to be invoked on a peer thread.</p>
@@ -189,6 +203,11 @@ public class TransactionConfidence implements Serializable {
     public void addEventListener(Listener listener, Executor executor) {
         Preconditions.checkNotNull(listener);
         listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor));
+        if (!(listener instanceof WalletListener)) {
+            ChainTip tip = getChainTip();
+            if (tip != null)
+                tip.watch(this);
+        }
     }
 
     /**
@@ -207,7 +226,61 @@ public class TransactionConfidence implements Serializable {
 
     public boolean removeEventListener(Listener listener) {
         Preconditions.checkNotNull(listener);
-        return ListenerRegistration.removeFromList(listener, listeners);
+        boolean removed = ListenerRegistration.removeFromList(listener, listeners);
+        ChainTip tip = getChainTip();
+        if (tip != null && !hasOwnListeners())
+            tip.unwatch(this);
+        return removed;
+    }
+
+    // Whether any listener other than that of a wallet holding the transaction is registered.
+    private boolean hasOwnListeners() {
+        for (ListenerRegistration<Listener> registration : listeners) {
+            if (!(registration.listener instanceof WalletListener))
+                return true;
+        }
+        return false;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    @Nullable
+    synchronized ChainTip getChainTip() {
+        return tip;
+    }
+
+    /**
+     * Called by the {@link Wallet} holding the transaction so that the depth and work done follow its view of the best
+     * chain from now on, or with null to stop that.
+     */
+    synchronized void setChainTip(@Nullable ChainTip tip) {
+        if (tip == this.tip)
+            return;
+        // Values known for an appearance in a block stay relative to that block.
+        ChainTip.Position appearance = this.tip == null ? ref : null;
+        rebase();
+        if (this.tip != null)
+            this.tip.unwatch(this);
+        this.tip = tip;
+        ref = appearance != null ? appearance : (tip == null ? null : tip.getHead());
+        if (tip != null && hasOwnListeners())
+            tip.watch(this);
+    }
+
+    // Whether the depth and work done have grown with the tip since ref. They haven't if the tip has yet to reach the
+    // block the transaction appeared in, as while a wallet is being given the transactions of a new block.
+    private boolean followsTip() {
+        return tip != null && ref != null && confidenceType == ConfidenceType.BUILDING &&
+                tip.getHead().height >= appearedAtChainHeight;
+    }
+
+    // Folds however far the tip has moved since ref into the depth and work done, which are then as of its head.
+    private void rebase() {
+        depth = getDepthInBlocks();
+        workDone = getWorkDone();
+        ref = tip == null ? null : tip.getHead();
     }
 
     /**
@@ -227,11 +300,22 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
+        rebase();
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
     }
 
+    /**
+     * Called when the transaction appears in the given block on the best chain. Sets the type to BUILDING, and the
+     * depth and work done to those of the block alone, however far the chain tip is from it.
+     */
+    synchronized void setAppearedInBlock(StoredBlock block) throws VerificationException {
+        setAppearedAtChainHeight(block.getHeight());
+        workDone = block.getHeader().getWork();
+        ref = new ChainTip.Position(block.getHeight(), block.getChainWork());
+    }
+
     /**
      * Returns a general statement of the level of confidence you can have in this transaction.
      */
@@ -246,6 +330,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        rebase();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -333,6 +418,7 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        rebase();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
         return true;
@@ -349,13 +435,16 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (!followsTip())
+            return depth;
+        return depth + tip.blocksSince(ref);
     }
 
     /*
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        rebase();
         this.depth = depth;
     }
 
@@ -367,10 +456,13 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (!followsTip())
+            return workDone;
+        return workDone.add(tip.workSince(ref));
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        rebase();
         this.workDone = workDone;
     }
 
@@ -413,6 +505,17 @@ public class TransactionConfidence implements Serializable {
         }
     }
 
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        // The chain tip isn't saved, so the depth and work done must be complete without it.
+        rebase();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
+    }
+
     /**
      * Call this after adjusting the confidence, for cases where listeners should be notified. This has to be done
      * explicitly rather than being done automatically because sometimes complex changes to transaction states can
@@ -254,6 +254,11 @@ public class TransactionInput extends ChildMessage implements Serializable {
         return parentTransaction;
     }
 
+    /** Gives an input that was created without a parent to the transaction being built from it. */
+    void setParentTransaction(Transaction parentTransaction) {
+        this.parentTransaction = parentTransaction;
+    }
+
     /**
      * Returns a human readable debug string.
      */
@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -44,15 +45,31 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+
+    /**
+     * A SHA-256 engine plus a buffer for the intermediate result of a double digest. MessageDigest isn't thread safe,
+     * so rather than funnelling every hash in the process through one locked instance each thread gets its own.
+     */
+    private static class Sha256State {
+        final MessageDigest digest;
+        final byte[] first = new byte[32];
+
+        Sha256State() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
         }
     }
 
+    private static final ThreadLocal<Sha256State> sha256 = new ThreadLocal<Sha256State>() {
+        @Override
+        protected Sha256State initialValue() {
+            return new Sha256State();
+        }
+    };
+
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = CoinDefinition.coinName + " Signed Message:\n";
     public static final byte[] BITCOIN_SIGNED_MESSAGE_HEADER_BYTES = BITCOIN_SIGNED_MESSAGE_HEADER.getBytes(Charsets.UTF_8);
@@ -204,20 +221,37 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] result = new byte[32];
+        doubleDigest(input, offset, length, result, 0);
+        return result;
+    }
+
+    /**
+     * Same as {@link Utils#doubleDigest(byte[], int, int)} but writes the 32 byte result into output starting at
+     * outputOffset, instead of allocating a new array.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        Sha256State state = sha256.get();
+        state.digest.reset();
+        state.digest.update(input, offset, length);
+        finishDoubleDigest(state, output, outputOffset);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        byte[] result = new byte[32];
+        singleDigest(input, offset, length, result, 0);
+        return result;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range and writes the 32 byte result into output starting at
+     * outputOffset.
+     */
+    public static void singleDigest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        Sha256State state = sha256.get();
+        state.digest.reset();
+        state.digest.update(input, offset, length);
+        finishDigest(state.digest, output, outputOffset);
     }
 
     /**
@@ -225,12 +259,38 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
+        byte[] result = new byte[32];
+        doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2, result, 0);
+        return result;
+    }
+
+    /**
+     * Same as {@link Utils#doubleDigestTwoBuffers(byte[], int, int, byte[], int, int)} but writes the 32 byte result
+     * into output starting at outputOffset.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2,
+                                              byte[] output, int outputOffset) {
+        Sha256State state = sha256.get();
+        state.digest.reset();
+        state.digest.update(input1, offset1, length1);
+        state.digest.update(input2, offset2, length2);
+        finishDoubleDigest(state, output, outputOffset);
+    }
+
+    private static void finishDoubleDigest(Sha256State state, byte[] output, int outputOffset) {
+        finishDigest(state.digest, state.first, 0);
+        state.digest.update(state.first, 0, 32);
+        finishDigest(state.digest, output, outputOffset);
+    }
+
+    private static void finishDigest(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            // Also resets the digest, ready for the next caller on this thread.
+            digest.digest(output, outputOffset, 32);
+        } catch (DigestException e) {
             digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+            throw new IllegalArgumentException(e);  // Output buffer too small.
         }
     }
 
@@ -322,16 +382,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -25,6 +25,7 @@ import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.script.ScriptChunk;
 import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletLog;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
@@ -36,6 +37,8 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -133,10 +136,28 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
+    // The keychain indexed by pubkey hash and by pubkey, so checking whether an output is ours doesn't have to scan
+    // it. Must be kept in sync with the keychain, see indexKeys().
+    private transient HashMap<ByteString, ECKey> keysByPubKeyHash;
+    private transient HashMap<ByteString, ECKey> keysByPubKey;
 
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
+    // The Bloom filter of the keys, watched scripts and outputs above, kept up to date as they are added so that a new
+    // key or transaction doesn't mean walking the whole wallet. Null when it has to be rebuilt, eg after a removal, as
+    // elements can't be taken out of a Bloom filter.
+    @GuardedBy("lock") private transient BloomFilter bloomFilterCache;
+    @GuardedBy("lock") private transient int bloomFilterCacheSize;
+    @GuardedBy("lock") private transient double bloomFilterCacheFPRate;
+    @GuardedBy("lock") private transient long bloomFilterCacheTweak;
+    // How many elements the filter has, valid if bloomFilterElementsKnown.
+    @GuardedBy("lock") private transient int bloomFilterElements;
+    @GuardedBy("lock") private transient boolean bloomFilterElementsKnown;
+    // The latest update time of any transaction in the wallet. A key created after it can't have been paid by any of
+    // them, so only the key itself needs adding to the filter.
+    @GuardedBy("lock") private transient long newestTransactionTimeMillis;
+
     private final NetworkParameters params;
 
     @Nullable private Sha256Hash lastBlockSeenHash;
@@ -149,10 +170,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
 
-    // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
-    // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
-    private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // The best chain as last seen, which the confidences of our transactions work out their depth and work done from.
+    // A new block just moves it rather than touching every transaction.
+    private transient ChainTip chainTip;
+
+    // Running totals of the ESTIMATED, AVAILABLE and watched balances, so that reading them doesn't mean going through
+    // every unspent and pending transaction. Each transaction's share of them is kept, and when something may have
+    // changed it, like a move between pools or some of its outputs being spent, the transaction is marked dirty and its
+    // share worked out again on the next read. A null balanceShares means the totals must be rebuilt from scratch.
+    @Nullable private transient Map<Sha256Hash, BalanceShare> balanceShares;
+    private transient Map<Sha256Hash, Transaction> dirtyBalanceTxns;
+    // Transactions whose outputs don't count as available yet but may do without the wallet being told, like immature
+    // coinbases as blocks arrive or pending transactions as peers announce them. Their shares are worked out on every
+    // read, but there are normally few of them.
+    private transient Map<Sha256Hash, Transaction> unsettledBalanceTxns;
+    private transient BigInteger estimatedBalance, availableBalance, watchedBalance;
+    private volatile boolean vCheckBalances;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -168,6 +201,35 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
     // that was created after it. Useful when you believe some keys have been compromised.
     private volatile long vKeyRotationTimestamp;
+    // Counts the copies of the wallet made for saving, guarded by lock. Saves only lock the wallet while copying it, so
+    // two can be written at once, and savedSnapshots records the last copy renamed into place for each file so that
+    // an older one is never renamed over a newer.
+    private transient long saveSnapshots;
+    private transient Map<File, Long> savedSnapshots;
+    // A log of changes isn't compacted into its wallet file until it's bigger than the file and at least this big.
+    private static final long MIN_COMPACTED_LOG_BYTES = 256 * 1024;
+    // What saveChangesToFile has to append to the log of loggedFile, guarded by lock. Nothing is tracked until the
+    // first snapshot for a log has been taken.
+    private transient Map<Sha256Hash, Transaction> unsavedTxns;
+    private transient Set<ECKey> unsavedKeys;
+    private transient Set<Script> unsavedScripts;
+    private transient Set<String> unsavedExtensions;
+    @Nullable private transient File loggedFile;
+    // The generation of the log, and the size of its snapshot and of the records appended since, guarded by lock.
+    private transient long logGeneration, logSnapshotBytes, logBytes;
+    // Set when something changed that a log record can't express, like a removal, or when a save failed, so that the
+    // next save of changes writes the whole wallet.
+    private transient volatile boolean vLogNeedsSnapshot;
+    // Each save of changes takes a ticket under lock and then writes its snapshot or record to disk once the saves
+    // before it are done, so records reach the log in the order they were made in and no log is deleted while records
+    // are appended to it, without the wallet being locked meanwhile. logTurn is the last ticket done, guarded by
+    // savedSnapshots, and brokenLogGeneration the generation of a log a record failed to reach, only touched by the
+    // save whose turn it is.
+    private transient long logTickets;
+    private transient long logTurn;
+    @Nullable private transient Long brokenLogGeneration;
+    // How long the last save took in all and how long the wallet was locked for during it, for monitoring.
+    private transient volatile long vLastSaveMillis, vLastSaveLockMillis;
     private volatile boolean vKeyRotationEnabled;
 
     private transient CoinSelector coinSelector = new DefaultCoinSelector();
@@ -194,6 +256,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public Wallet(NetworkParameters params) {
         this.params = checkNotNull(params);
         keychain = new ArrayList<ECKey>();
+        keysByPubKeyHash = new HashMap<ByteString, ECKey>();
+        keysByPubKey = new HashMap<ByteString, ECKey>();
         watchedScripts = Sets.newHashSet();
         unspent = new HashMap<Sha256Hash, Transaction>();
         spent = new HashMap<Sha256Hash, Transaction>();
@@ -216,8 +280,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
-        ignoreNextNewBlock = new HashSet<Sha256Hash>();
-        txConfidenceListener = new TransactionConfidence.Listener() {
+        chainTip = new ChainTip();
+        savedSnapshots = new HashMap<File, Long>();
+        unsavedTxns = new HashMap<Sha256Hash, Transaction>();
+        unsavedKeys = new LinkedHashSet<ECKey>();
+        unsavedScripts = new LinkedHashSet<Script>();
+        unsavedExtensions = new HashSet<String>();
+        vLogNeedsSnapshot = true;
+        dirtyBalanceTxns = new HashMap<Sha256Hash, Transaction>();
+        unsettledBalanceTxns = new HashMap<Sha256Hash, Transaction>();
+        txConfidenceListener = new TransactionConfidence.WalletListener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
                 // This will run on the user code thread so we shouldn't do anything too complicated here.
@@ -229,6 +301,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        markUnsaved(tx);
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -277,7 +350,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKeyHash.remove(ByteString.copyFrom(key.getPubKeyHash()));
+            keysByPubKey.remove(ByteString.copyFrom(key.getPubKey()));
+            invalidateBloomFilterCache();
+            invalidateBalances();
+            vLogNeedsSnapshot = true;
+            return true;
         } finally {
             lock.unlock();
         }
@@ -295,34 +375,76 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /** Saves the wallet first to the given temp file, then renames to the dest file. */
+    /**
+     * Saves the wallet first to the given temp file, then renames to the dest file. The wallet is only locked while a
+     * copy of it is made in memory, not while that is written out and synced to disk, so saving doesn't hold up the
+     * processing of blocks and transactions unless the caller has the wallet locked.
+     */
     public void saveToFile(File temp, File destFile) throws IOException {
-        FileOutputStream stream = null;
+        long start = System.currentTimeMillis();
+        File canonical = destFile.getCanonicalFile();
+        long snapshot;
+        Protos.Wallet walletProto;
         lock.lock();
+        try {
+            snapshot = ++saveSnapshots;
+            walletProto = new WalletProtobufSerializer().walletToProto(this);
+            // Without a generation this snapshot disowns the log of changes to the file, so the next must start anew.
+            if (canonical.equals(loggedFile))
+                vLogNeedsSnapshot = true;
+        } catch (RuntimeException e) {
+            log.error("Failed whilst saving wallet", e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        vLastSaveLockMillis = System.currentTimeMillis() - start;
+        try {
+            writeSnapshot(walletProto, snapshot, temp, destFile);
+        } finally {
+            vLastSaveMillis = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Writes the given copy of the wallet to the temp file, syncs it and renames it to the dest file, unless a copy
+     * made later has been renamed there already. Returns whether it was renamed.
+     */
+    boolean writeSnapshot(Protos.Wallet walletProto, long snapshot, File temp, File destFile) throws IOException {
+        FileOutputStream stream = null;
         try {
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            walletProto.writeTo(stream);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
             stream.getFD().sync();
             stream.close();
             stream = null;
-            if (Utils.isWindows()) {
-                // Work around an issue on Windows whereby you can't rename over existing files.
-                File canonical = destFile.getCanonicalFile();
-                canonical.delete();
-                if (temp.renameTo(canonical))
-                    return;  // else fall through.
-                throw new IOException("Failed to rename " + temp + " to " + canonical);
-            } else if (!temp.renameTo(destFile)) {
-                throw new IOException("Failed to rename " + temp + " to " + destFile);
+            File canonical = destFile.getCanonicalFile();
+            synchronized (savedSnapshots) {
+                Long saved = savedSnapshots.get(canonical);
+                if (saved != null && saved > snapshot) {
+                    // Another save copied the wallet after we did but got it to disk first.
+                    log.info("Dropped save of wallet as a newer one has already been written");
+                    temp.delete();
+                    return false;
+                }
+                if (Utils.isWindows()) {
+                    // Work around an issue on Windows whereby you can't rename over existing files.
+                    canonical.delete();
+                    if (!temp.renameTo(canonical))
+                        throw new IOException("Failed to rename " + temp + " to " + canonical);
+                } else if (!temp.renameTo(destFile)) {
+                    throw new IOException("Failed to rename " + temp + " to " + destFile);
+                }
+                savedSnapshots.put(canonical, snapshot);
+                return true;
             }
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
         } finally {
-            lock.unlock();
             if (stream != null) {
                 stream.close();
             }
@@ -332,6 +454,150 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * <p>Saves the changes made to the wallet since the last call, by appending a record of the keys, watched scripts,
+     * transactions and extensions added or changed since then to a log beside the dest file (see {@link WalletLog}).
+     * The cost of a save is then down to how much changed rather than the size of the wallet, which matters for big
+     * wallets that are saved often, such as while catching up with the chain.</p>
+     *
+     * <p>The first call writes the whole wallet to the dest file as {@link #saveToFile(java.io.File, java.io.File)}
+     * does and starts a new log, as does a call after something was removed from the wallet, it was re-organized or
+     * encrypted, or the log has grown bigger than the file, so the log is compacted back into the file from time to
+     * time. Otherwise the temp file is just deleted.</p>
+     *
+     * <p>{@link #loadFromFile(java.io.File)} replays the log when reading the file back. Other readers of the file
+     * need to use {@link WalletLog#readWallet(java.io.File)}, or they won't see changes that are only in the log.</p>
+     */
+    public void saveChangesToFile(File temp, File destFile) throws IOException {
+        long start = System.currentTimeMillis();
+        File canonical = destFile.getCanonicalFile();
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        long snapshot, generation, ticket;
+        Protos.Wallet walletProto;
+        boolean wholeWallet = false;
+        lock.lock();
+        try {
+            snapshot = ++saveSnapshots;
+            if (vLogNeedsSnapshot || !canonical.equals(loggedFile) ||
+                    logBytes > Math.max(logSnapshotBytes, MIN_COMPACTED_LOG_BYTES)) {
+                wholeWallet = true;
+                vLogNeedsSnapshot = false;
+                loggedFile = canonical;
+                logGeneration = new Random().nextLong();
+                walletProto = WalletLog.setGeneration(serializer.walletToProto(this), logGeneration);
+                logSnapshotBytes = walletProto.getSerializedSize();
+                logBytes = 0;
+            } else {
+                List<WalletExtension> changedExtensions = new ArrayList<WalletExtension>();
+                for (String id : unsavedExtensions) {
+                    WalletExtension extension = extensions.get(id);
+                    if (extension != null)
+                        changedExtensions.add(extension);
+                }
+                walletProto = WalletLog.setGeneration(serializer.walletToProto(this, getUnsavedWalletTransactions(),
+                        unsavedKeys, unsavedScripts, changedExtensions), logGeneration);
+                logBytes += walletProto.getSerializedSize();
+            }
+            generation = logGeneration;
+            ticket = ++logTickets;
+            unsavedTxns.clear();
+            unsavedKeys.clear();
+            unsavedScripts.clear();
+            unsavedExtensions.clear();
+        } catch (RuntimeException e) {
+            vLogNeedsSnapshot = true;
+            log.error("Failed whilst saving wallet", e);
+            vLastSaveMillis = System.currentTimeMillis() - start;
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        vLastSaveLockMillis = System.currentTimeMillis() - start;
+        // Waiting for the saves before this one only blocks other saves, never the wallet.
+        waitForLogTurn(ticket);
+        boolean saved = false;
+        try {
+            if (!wholeWallet) {
+                appendToLog(walletProto, canonical, generation);
+                temp.delete();
+                saved = true;
+            } else if (writeSnapshot(walletProto, snapshot, temp, destFile)) {
+                WalletLog.deleteOtherLogs(canonical, generation);
+                saved = true;
+            }
+        } finally {
+            if (!saved)
+                vLogNeedsSnapshot = true;
+            doneWithLogTurn(ticket);
+            vLastSaveMillis = System.currentTimeMillis() - start;
+        }
+    }
+
+    // Waits for the saves of changes that took the tickets before the given one to be done.
+    private void waitForLogTurn(long ticket) {
+        boolean interrupted = false;
+        synchronized (savedSnapshots) {
+            while (logTurn != ticket - 1) {
+                try {
+                    savedSnapshots.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void doneWithLogTurn(long ticket) {
+        synchronized (savedSnapshots) {
+            logTurn = ticket;
+            savedSnapshots.notifyAll();
+        }
+    }
+
+    private void appendToLog(Protos.Wallet record, File walletFile, long generation) throws IOException {
+        try {
+            // A record after one that didn't make it would be lost on replay anyway, so wait for the next snapshot.
+            if (brokenLogGeneration != null && brokenLogGeneration == generation)
+                throw new IOException("An earlier change failed to reach the wallet log");
+            WalletLog.append(WalletLog.getLogFile(walletFile, generation), record);
+        } catch (IOException e) {
+            brokenLogGeneration = generation;
+            vLogNeedsSnapshot = true;
+            throw e;
+        }
+    }
+
+    private List<WalletTransaction> getUnsavedWalletTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        List<WalletTransaction> txns = new ArrayList<WalletTransaction>(unsavedTxns.size());
+        for (Sha256Hash hash : unsavedTxns.keySet()) {
+            if (unspent.containsKey(hash))
+                txns.add(new WalletTransaction(Pool.UNSPENT, unspent.get(hash)));
+            else if (spent.containsKey(hash))
+                txns.add(new WalletTransaction(Pool.SPENT, spent.get(hash)));
+            else if (pending.containsKey(hash))
+                txns.add(new WalletTransaction(Pool.PENDING, pending.get(hash)));
+            else if (dead.containsKey(hash))
+                txns.add(new WalletTransaction(Pool.DEAD, dead.get(hash)));
+        }
+        return txns;
+    }
+
+    /** Returns how long the last save to a file took, in milliseconds, or zero if there hasn't been one. */
+    public long getLastSaveMillis() {
+        return vLastSaveMillis;
+    }
+
+    /**
+     * Returns for how long the wallet was locked during the last save to a file, in milliseconds, which is only while
+     * it was being copied.
+     */
+    public long getLastSaveLockMillis() {
+        return vLastSaveLockMillis;
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -413,9 +679,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * delayTime. <b>You should still save the wallet manually when your program is about to shut down as the JVM
      * will not wait for the background thread.</b></p>
      *
+     * <p>For a big wallet, {@link WalletFiles#setSaveChanges(boolean)} on the returned object makes saves only write
+     * what changed since the last one, see {@link #saveChangesToFile(java.io.File, java.io.File)}.</p>
+     *
      * <p>An event listener can be provided. If a delay >0 was specified, it will be called on a background thread
-     * with the wallet locked when an auto-save occurs. If delay is zero or you do something that always triggers
-     * an immediate save, like adding a key, the event listener will be invoked on the calling threads.</p>
+     * when an auto-save occurs. The wallet is only locked while it's copied for saving, not during the disk IO. If
+     * delay is zero or you do something that always triggers an immediate save, like adding a key, the event listener
+     * will be invoked on the calling threads.</p>
      *
      * @param f The destination file to save to.
      * @param delayTime How many time units to wait until saving the wallet on a background thread.
@@ -464,12 +734,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * {@link WalletProtobufSerializer}.
      */
     public void saveToFileStream(OutputStream f) throws IOException {
+        Protos.Wallet walletProto;
         lock.lock();
         try {
-            new WalletProtobufSerializer().writeWallet(this, f);
+            walletProto = new WalletProtobufSerializer().walletToProto(this);
         } finally {
             lock.unlock();
         }
+        walletProto.writeTo(f);
     }
 
     /** Returns the parameters this wallet was created with. */
@@ -481,17 +753,18 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Returns a wallet deserialized from the given file.
      */
     public static Wallet loadFromFile(File f) throws UnreadableWalletException {
+        Protos.Wallet walletProto;
         try {
-            FileInputStream stream = null;
-            try {
-                stream = new FileInputStream(f);
-                return loadFromFileStream(stream);
-            } finally {
-                if (stream != null) stream.close();
-            }
+            // Replays the log of changes if the file was saved with saveChangesToFile.
+            walletProto = WalletLog.readWallet(f);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not open file", e);
         }
+        Wallet wallet = new WalletProtobufSerializer().readWallet(walletProto);
+        if (!wallet.isConsistent()) {
+            log.error("Loaded an inconsistent wallet");
+        }
+        return wallet;
     }
     
     public boolean isConsistent() {
@@ -559,6 +832,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        chainTip.setHeight(lastBlockSeenHeight);
+        for (Transaction tx : transactions.values())
+            tx.getConfidence().setChainTip(chainTip);
+        indexKeys();
+        newestTransactionTimeMillis = Long.MAX_VALUE;  // Unknown until the filter is rebuilt.
     }
     
     /**
@@ -840,6 +1118,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (tmp != null)
                 tx = tmp;
         }
+        markChanged(tx);
 
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
@@ -880,12 +1159,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
-            if (bestChain) {
-                // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
-                // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
-                ignoreNextNewBlock.add(txHash);
-            }
+            // That may have moved the update time on from when the transaction was added to the bloom filter cache.
+            newestTransactionTimeMillis = Math.max(newestTransactionTimeMillis, tx.getUpdateTime().getTime());
         }
 
         onWalletChangedSuppressions--;
@@ -906,7 +1181,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            BigInteger newBalance = getBalance();  // This is slow.
+            BigInteger newBalance = getBalance();
             log.info("Balance is now: " + bitcoinValueToFriendlyString(newBalance));
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -953,23 +1228,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return;
         lock.lock();
         try {
+            // Moving the tip updates the depth and work done of all the BUILDING transactions at once. It goes first
+            // so that it knows the height it was loaded at when it sees its first block.
+            chainTip.setHead(block);
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
+            // Only transactions somebody is listening to are told their depth changed. Those that appeared in this
+            // block are already being told their type did.
+            for (TransactionConfidence confidence : chainTip.getWatched()) {
+                Transaction tx = confidence.getTransaction();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING && !confidenceChanged.containsKey(tx))
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
             }
 
             informConfidenceListenersIfNotReorganizing();
@@ -1004,6 +1275,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             log.info("  coinbase tx <-dead: confidence {}", tx.getHashAsString(),
                     tx.getConfidence().getConfidenceType().name());
             dead.remove(tx.getHash());
+            invalidateBloomFilterCache();
         }
 
         // Update tx and other unspent/pending transactions by connecting inputs/outputs.
@@ -1170,6 +1442,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever outputs of the tx were spent or unspent, whether or not it moves.
+        markChanged(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1340,7 +1614,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getHash(), tx);
+        markChanged(tx);
+        boolean isNew = transactions.put(tx.getHash(), tx) == null;
+        if (pool == Pool.DEAD)
+            invalidateBloomFilterCache();
+        else if (isNew)
+            addToBloomFilterCache(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -1360,6 +1639,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        tx.getConfidence().setChainTip(chainTip);
     }
 
     /**
@@ -1428,11 +1708,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             if (fromHeight == 0) {
+                for (Transaction tx : transactions.values())
+                    tx.getConfidence().setChainTip(null);
                 unspent.clear();
                 spent.clear();
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                invalidateBloomFilterCache();
+                invalidateBalances();
+                vLogNeedsSnapshot = true;
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1458,6 +1743,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         tx.disconnectInputs();
                         i.remove();
                         transactions.remove(tx.getHash());
+                        tx.getConfidence().setChainTip(null);
+                        invalidateBloomFilterCache();
+                        invalidateBalances();
+                        vLogNeedsSnapshot = true;
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -1887,8 +2176,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             //
             // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
             // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -2059,9 +2346,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2071,8 +2357,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     throw new KeyCrypterException("Cannot add key because it's encrypted and this wallet is not.");
                 }
                 keychain.add(key);
+                indexKey(key);
+                addToBloomFilterCache(key);
+                if (loggedFile != null)
+                    unsavedKeys.add(key);
                 added++;
             }
+            // Outputs already in the wallet may now be ours.
+            if (added > 0)
+                invalidateBalances();
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
@@ -2140,8 +2433,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (watchedScripts.contains(script)) continue;
 
                 watchedScripts.add(script);
+                if (loggedFile != null)
+                    unsavedScripts.add(script);
                 added++;
             }
+            // Outputs already in the wallet may now be watched, which only a full rebuild finds.
+            if (added > 0) {
+                invalidateBloomFilterCache();
+                invalidateBalances();
+            }
 
             queueOnScriptsAdded(scripts);
             saveNow();
@@ -2161,20 +2461,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteString.copyFrom(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2205,10 +2502,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteString.copyFrom(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2221,6 +2515,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return findKeyFromPubKey(pubkey) != null;
     }
 
+    private void indexKey(ECKey key) {
+        keysByPubKeyHash.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        keysByPubKey.put(ByteString.copyFrom(key.getPubKey()), key);
+    }
+
+    /** Rebuilds the key indexes from scratch, for when the keychain was replaced or deserialized. */
+    private void indexKeys() {
+        keysByPubKeyHash = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        keysByPubKey = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
     /**
      * <p>It's possible to calculate a wallets balance from multiple points of view. This enum selects which
      * getBalance() should use.</p>
@@ -2262,10 +2569,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                updateBalances();
+                if (vCheckBalances)
+                    checkBalance(estimatedBalance, calculateEstimatedBalance(), "estimated");
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2274,6 +2581,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    private BigInteger calculateEstimatedBalance() {
+        LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
+        BigInteger value = BigInteger.ZERO;
+        for (TransactionOutput out : all) value = value.add(out.getValue());
+        return value;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector. Just asks it to select
      * as many coins as possible and returns the total.
@@ -2282,14 +2596,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-            return selection.valueGathered;
+            if (!isDefaultCoinSelector(selector))
+                return calculateBalance(selector);
+            updateBalances();
+            if (vCheckBalances)
+                checkBalance(availableBalance, calculateBalance(selector), "available");
+            return availableBalance;
         } finally {
             lock.unlock();
         }
     }
 
+    private BigInteger calculateBalance(CoinSelector selector) {
+        LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+        CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+        return selection.valueGathered;
+    }
+
     /** Returns the available balance, including any unspent balance at watched addresses */
     public BigInteger getWatchedBalance() {
         return getWatchedBalance(coinSelector);
@@ -2303,14 +2626,131 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = getWatchedOutputs(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-            return selection.valueGathered;
+            if (!isDefaultCoinSelector(selector))
+                return calculateWatchedBalance(selector);
+            updateBalances();
+            if (vCheckBalances)
+                checkBalance(watchedBalance, calculateWatchedBalance(selector), "watched");
+            return watchedBalance;
         } finally {
             lock.unlock();
         }
     }
 
+    private BigInteger calculateWatchedBalance(CoinSelector selector) {
+        LinkedList<TransactionOutput> candidates = getWatchedOutputs(true);
+        CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+        return selection.valueGathered;
+    }
+
+    /**
+     * <p>If set, every read of a balance the wallet keeps a running total of is checked against the balance worked
+     * out from scratch, and an {@link IllegalStateException} thrown if they differ. This makes reading balances as
+     * slow as if there were no totals, so is meant for tests and debugging.</p>
+     */
+    public void setCheckBalances(boolean checkBalances) {
+        vCheckBalances = checkBalances;
+    }
+
+    // The totals assume coins are selected as the default coin selector does, which any other selector may not.
+    private static boolean isDefaultCoinSelector(CoinSelector selector) {
+        return selector.getClass() == DefaultCoinSelector.class;
+    }
+
+    private static void checkBalance(BigInteger total, BigInteger calculated, String balanceType) {
+        if (!total.equals(calculated))
+            throw new IllegalStateException("Running total of " + balanceType + " balance is " +
+                    bitcoinValueToFriendlyString(total) + " but should be " + bitcoinValueToFriendlyString(calculated));
+    }
+
+    // How much one unspent or pending transaction adds to each of the balance totals.
+    private static class BalanceShare {
+        final BigInteger estimated, available, watched;
+
+        BalanceShare(BigInteger estimated, BigInteger available, BigInteger watched) {
+            this.estimated = estimated;
+            this.available = available;
+            this.watched = watched;
+        }
+    }
+
+    // Marks the transaction as changed, for the balance totals and the next save of changes.
+    private void markChanged(Transaction tx) {
+        markBalanceDirty(tx);
+        markUnsaved(tx);
+    }
+
+    private void markUnsaved(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (loggedFile != null)
+            unsavedTxns.put(tx.getHash(), tx);
+    }
+
+    private void markBalanceDirty(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceShares != null)
+            dirtyBalanceTxns.put(tx.getHash(), tx);
+    }
+
+    private void invalidateBalances() {
+        checkState(lock.isHeldByCurrentThread());
+        balanceShares = null;
+        dirtyBalanceTxns.clear();
+    }
+
+    // Brings the balance totals up to date with the transactions marked dirty, or rebuilds them if need be.
+    private void updateBalances() {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceShares == null) {
+            balanceShares = new HashMap<Sha256Hash, BalanceShare>();
+            unsettledBalanceTxns.clear();
+            estimatedBalance = availableBalance = watchedBalance = BigInteger.ZERO;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+                addBalanceShare(tx);
+        } else {
+            dirtyBalanceTxns.putAll(unsettledBalanceTxns);
+            for (Sha256Hash hash : dirtyBalanceTxns.keySet()) {
+                BalanceShare share = balanceShares.remove(hash);
+                if (share != null) {
+                    estimatedBalance = estimatedBalance.subtract(share.estimated);
+                    availableBalance = availableBalance.subtract(share.available);
+                    watchedBalance = watchedBalance.subtract(share.watched);
+                }
+                unsettledBalanceTxns.remove(hash);
+                // Only unspent and pending transactions have a share, and they may have moved to any pool since.
+                Transaction tx = unspent.get(hash);
+                if (tx == null)
+                    tx = pending.get(hash);
+                if (tx != null)
+                    addBalanceShare(tx);
+            }
+        }
+        dirtyBalanceTxns.clear();
+    }
+
+    private void addBalanceShare(Transaction tx) {
+        // The same rules as calculateAllSpendCandidates, getWatchedOutputs and DefaultCoinSelector.
+        boolean mature = tx.isMature();
+        boolean selectable = mature && DefaultCoinSelector.isSelectable(tx);
+        BigInteger estimated = BigInteger.ZERO, available = BigInteger.ZERO, watched = BigInteger.ZERO;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (output.isMine(this)) {
+                estimated = estimated.add(output.getValue());
+                if (selectable)
+                    available = available.add(output.getValue());
+            }
+            if (selectable && output.isWatched(this))
+                watched = watched.add(output.getValue());
+        }
+        if (!selectable)
+            unsettledBalanceTxns.put(tx.getHash(), tx);
+        balanceShares.put(tx.getHash(), new BalanceShare(estimated, available, watched));
+        estimatedBalance = estimatedBalance.add(estimated);
+        availableBalance = availableBalance.add(available);
+        watchedBalance = watchedBalance.add(watched);
+    }
+
     @Override
     public String toString() {
         return toString(false, true, true, null);
@@ -2474,6 +2914,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
+            // A re-org can move many transactions between pools and change the maturity of coinbases anywhere below
+            // the split point, so the balance totals are rebuilt rather than updated. Transactions can also leave the
+            // chain altogether, which a log of changes can't record.
+            invalidateBalances();
+            vLogNeedsSnapshot = true;
+
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
             ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
@@ -2548,19 +2994,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // doesn't matter - the miners deleted T1 from their mempool, will resurrect T2 and put that into the
             // mempool and so T1 is still seen as a losing double spend.
 
-            // The old blocks have contributed to the depth and work done for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth and work done is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            BigInteger workDoneToSubtract = BigInteger.ZERO;
-            for (StoredBlock b : oldBlocks) {
-                workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
-            }
-            log.info("depthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            // The old blocks no longer add to the depth and work done of the transactions in blocks up to and
+            // including the chain split block, which moving the tip back to it takes care of.
+            chainTip.setHead(splitPoint);
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2597,20 +3033,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
-    /**
-     * Subtract the supplied depth and work done from the given transactions.
-     */
-    private void subtractDepthAndWorkDone(int depthToSubtract, BigInteger workDoneToSubtract,
-                                          Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
-        }
-    }
-
     /**
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
@@ -2676,6 +3098,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            chainTip.setHeight(lastBlockSeenHeight);
         } finally {
             lock.unlock();
         }
@@ -2795,9 +3218,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            indexKeys();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
+            vLogNeedsSnapshot = true;
 
             saveNow();
         } finally {
@@ -2836,9 +3261,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            indexKeys();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
+            vLogNeedsSnapshot = true;
             saveNow();
         } finally {
             lock.unlock();
@@ -3020,8 +3447,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     @Override
     public int getBloomFilterElementCount() {
+        lock.lock();
+        try {
+            if (!bloomFilterElementsKnown) {
+                bloomFilterElements = countBloomFilterElements();
+                bloomFilterElementsKnown = true;
+            }
+            return bloomFilterElements;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int countBloomFilterElements() {
+        checkState(lock.isHeldByCurrentThread());
         int size = getKeychainSize() * 2;
+        long newestTime = 0;
         for (Transaction tx : getTransactions(false)) {
+            newestTime = Math.max(newestTime, tx.getUpdateTime().getTime());
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
                     if (isTxOutputBloomFilterable(out))
@@ -3031,6 +3474,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
         }
+        newestTransactionTimeMillis = newestTime;
 
         // Some scripts may have more than one bloom element.  That should normally be okay,
         // because under-counting just increases false-positive rate.
@@ -3069,42 +3513,96 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     @Override
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
-        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
+            if (bloomFilterCache == null || bloomFilterCacheSize != size ||
+                    bloomFilterCacheFPRate != falsePositiveRate || bloomFilterCacheTweak != nTweak) {
+                bloomFilterCache = buildBloomFilter(size, falsePositiveRate, nTweak);
+                bloomFilterCacheSize = size;
+                bloomFilterCacheFPRate = falsePositiveRate;
+                bloomFilterCacheTweak = nTweak;
             }
+            // The cache keeps being added to, so hand out a copy.
+            BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+            filter.merge(bloomFilterCache);
+            return filter;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
+    private BloomFilter buildBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        checkState(lock.isHeldByCurrentThread());
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        for (ECKey key : keychain) {
+            filter.insert(key.getPubKey());
+            filter.insert(key.getPubKeyHash());
+        }
+
+        for (Script script : watchedScripts) {
+            for (ScriptChunk chunk : script.getChunks()) {
+                // Only add long (at least 64 bit) data to the bloom filter.
+                // If any long constants become popular in scripts, we will need logic
+                // here to exclude them.
+                if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                    filter.insert(chunk.data);
                 }
             }
-        } finally {
-            lock.unlock();
         }
+        long newestTime = 0;
         for (Transaction tx : getTransactions(false)) {
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                TransactionOutput out = tx.getOutputs().get(i);
-                try {
-                    if (isTxOutputBloomFilterable(out)) {
-                        TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.bitcoinSerialize());
-                    }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
+            newestTime = Math.max(newestTime, tx.getUpdateTime().getTime());
+            insertBloomFilterOutPoints(filter, tx);
+        }
+        newestTransactionTimeMillis = newestTime;
+        return filter;
+    }
+
+    // Inserts the outpoints of the outputs of tx that the filter must match, returning how many there were.
+    private int insertBloomFilterOutPoints(@Nullable BloomFilter filter, Transaction tx) {
+        int count = 0;
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            TransactionOutput out = tx.getOutputs().get(i);
+            try {
+                if (isTxOutputBloomFilterable(out)) {
+                    if (filter != null)
+                        filter.insert(new TransactionOutPoint(params, i, tx).bitcoinSerialize());
+                    count++;
                 }
+            } catch (ScriptException e) {
+                throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
             }
         }
+        return count;
+    }
 
-        return filter;
+    private void addToBloomFilterCache(ECKey key) {
+        checkState(lock.isHeldByCurrentThread());
+        long creationTimeMillis = key.getCreationTimeSeconds() * 1000;
+        if (creationTimeMillis == 0 || creationTimeMillis <= newestTransactionTimeMillis) {
+            // Transactions already in the wallet may pay to it, so their outputs have to be looked at again.
+            invalidateBloomFilterCache();
+            return;
+        }
+        if (bloomFilterCache != null) {
+            bloomFilterCache.insert(key.getPubKey());
+            bloomFilterCache.insert(key.getPubKeyHash());
+        }
+        bloomFilterElements += 2;
+    }
+
+    private void addToBloomFilterCache(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        newestTransactionTimeMillis = Math.max(newestTransactionTimeMillis, tx.getUpdateTime().getTime());
+        if (bloomFilterCache == null && !bloomFilterElementsKnown)
+            return;
+        bloomFilterElements += insertBloomFilterOutPoints(bloomFilterCache, tx);
+    }
+
+    private void invalidateBloomFilterCache() {
+        checkState(lock.isHeldByCurrentThread());
+        bloomFilterCache = null;
+        bloomFilterElementsKnown = false;
     }
 
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
@@ -3236,6 +3734,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (extensions.containsKey(id))
                 throw new IllegalStateException("Cannot add two extensions with the same ID: " + id);
             extensions.put(id, extension);
+            markExtensionUnsaved(id);
             saveNow();
         } finally {
             lock.unlock();
@@ -3253,6 +3752,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (previousExtension != null)
                 return previousExtension;
             extensions.put(id, extension);
+            markExtensionUnsaved(id);
             saveNow();
             return extension;
         } finally {
@@ -3270,12 +3770,42 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             extensions.put(id, extension);
+            markExtensionUnsaved(id);
             saveNow();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Like {@link #addOrUpdateExtension(WalletExtension)}, but then saves the wallet to the file it auto saves to on the
+     * calling thread, and throws if that fails rather than just logging it, so the caller knows the extension has
+     * reached the disk.
+     *
+     * @return false, without doing anything, if the wallet isn't auto saving so there's nowhere to save it to
+     */
+    public boolean addOrUpdateExtensionAndSave(WalletExtension extension) throws IOException {
+        String id = checkNotNull(extension).getWalletExtensionID();
+        WalletFiles files = vFileManager;
+        if (files == null)
+            return false;
+        lock.lock();
+        try {
+            extensions.put(id, extension);
+            markExtensionUnsaved(id);
+        } finally {
+            lock.unlock();
+        }
+        files.saveNow();
+        return true;
+    }
+
+    private void markExtensionUnsaved(String id) {
+        checkState(lock.isHeldByCurrentThread());
+        if (loggedFile != null)
+            unsavedExtensions.add(id);
+    }
+
     /** Returns a snapshot of all registered extension objects. The extensions themselves are not copied. */
     public Map<String, WalletExtension> getExtensions() {
         lock.lock();
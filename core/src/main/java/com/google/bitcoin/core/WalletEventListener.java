@@ -91,9 +91,10 @@ public interface WalletEventListener {
      * TransactionConfidence.ConfidenceType.DEAD</tt>. If it is, you should notify the user
      * in some way so they know the thing they bought may not arrive/the thing they sold should not be dispatched.</p>
      *
-     * <p>Note that this callback will be invoked for every transaction in the wallet, for every new block that is
-     * received (because the depth has changed). <b>If you want to update a UI view from the contents of the wallet
-     * it is more efficient to use onWalletChanged instead.</b></p>
+     * <p>Note that a new block doesn't invoke this callback for every transaction it buries, only for those that have
+     * confidence listeners or depth futures of their own registered, as the depth of the others is worked out when
+     * asked for. <b>If you want to update a UI view from the contents of the wallet it is more efficient to use
+     * onWalletChanged instead.</b></p>
      */
     void onTransactionConfidenceChanged(Wallet wallet, Transaction tx);
 
@@ -20,13 +20,13 @@ import com.google.bitcoin.core.*;
 import com.google.bitcoin.net.discovery.DnsDiscovery;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
+import com.google.bitcoin.store.WalletLog;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -176,7 +176,6 @@ public class WalletAppKit extends AbstractIdleService {
                 throw new IOException("Could not create named directory.");
             }
         }
-        FileInputStream walletStream = null;
         try {
             File chainFile = new File(directory, filePrefix + ".spvchain");
             boolean chainFileExists = chainFile.exists();
@@ -192,8 +191,7 @@ public class WalletAppKit extends AbstractIdleService {
                 long time = Long.MAX_VALUE;
                 if (vWalletFile.exists()) {
                     Wallet wallet = new Wallet(params);
-                    FileInputStream stream = new FileInputStream(vWalletFile);
-                    new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(stream), wallet);
+                    new WalletProtobufSerializer().readWallet(WalletLog.readWallet(vWalletFile), wallet);
                     time = wallet.getEarliestKeyCreationTime();
                 }
                 CheckpointManager.checkpoint(params, checkpoints, vStore, time);
@@ -203,10 +201,9 @@ public class WalletAppKit extends AbstractIdleService {
             if (this.userAgent != null)
                 vPeerGroup.setUserAgent(userAgent, version);
             if (vWalletFile.exists()) {
-                walletStream = new FileInputStream(vWalletFile);
                 vWallet = new Wallet(params);
                 addWalletExtensions(); // All extensions must be present before we deserialize
-                new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(walletStream), vWallet);
+                new WalletProtobufSerializer().readWallet(WalletLog.readWallet(vWalletFile), vWallet);
                 if (shouldReplayWallet)
                     vWallet.clearTransactions(0);
             } else {
@@ -251,8 +248,6 @@ public class WalletAppKit extends AbstractIdleService {
             }
         } catch (BlockStoreException e) {
             throw new IOException(e);
-        } finally {
-            if (walletStream != null) walletStream.close();
         }
     }
 
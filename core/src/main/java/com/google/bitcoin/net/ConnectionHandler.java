@@ -28,8 +28,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -111,17 +109,15 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, using a single
+            // gathering write rather than one write per queued message.
+            if (!bytesToWrite.isEmpty()) {
+                ByteBuffer[] buffs = bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]);
+                bytesToWriteRemaining -= channel.write(buffs);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    bytesToWrite.poll();
+                if (!bytesToWrite.isEmpty())
                     setWriteOps();
-                    break;
-                }
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
@@ -143,9 +139,9 @@ class ConnectionHandler implements MessageWriteTarget {
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // Just dump the message onto the write buffer and call tryWriteBytes. The caller promises not to touch the
+            // array again, so it can be queued without copying it.
+            bytesToWrite.offer(ByteBuffer.wrap(message));
             bytesToWriteRemaining += message.length;
             setWriteOps();
         } catch (IOException e) {
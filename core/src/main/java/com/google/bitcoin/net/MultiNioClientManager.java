@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A client manager which spreads its connections over several {@link NioClientManager}s, each with its own selector
+ * thread, so that reading from and parsing hundreds of connections can use more than one core. A connection stays on
+ * the thread it was given for its whole life, so the bytes and messages of any one connection are still handled in
+ * order.</p>
+ *
+ * <p>Unlike a lone {@link NioClientManager}, the selector threads run at normal priority. If the time spent processing
+ * messages is the bottleneck rather than network IO, see also
+ * {@link com.google.bitcoin.core.PeerGroup#setMessageExecutor(java.util.concurrent.Executor)}.</p>
+ */
+public class MultiNioClientManager extends AbstractIdleService implements ClientConnectionManager {
+    private final NioClientManager[] managers;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Creates a manager with one selector thread per available processor. */
+    public MultiNioClientManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a manager with the given number of selector threads. */
+    public MultiNioClientManager(int threads) {
+        checkArgument(threads > 0);
+        managers = new NioClientManager[threads];
+        for (int i = 0; i < threads; i++)
+            managers[i] = new NioClientManager(Thread.NORM_PRIORITY);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.startAndWait();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager manager : managers)
+            manager.stopAndWait();
+    }
+
+    @Override
+    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        // Round robin rather than least connected, as connections still being opened aren't counted as connected.
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % managers.length;
+        managers[i].openConnection(serverAddress, parser);
+    }
+
+    @Override
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (NioClientManager manager : managers)
+            count += manager.getConnectedClientCount();
+        return count;
+    }
+
+    @Override
+    public void closeConnections(int n) {
+        while (n-- > 0) {
+            // Take from the busiest thread, keeping the load even.
+            NioClientManager busiest = null;
+            int busiestCount = 0;
+            for (NioClientManager manager : managers) {
+                int count = manager.getConnectedClientCount();
+                if (count > busiestCount) {
+                    busiest = manager;
+                    busiestCount = count;
+                }
+            }
+            if (busiest == null)
+                return;
+            busiest.closeConnections(1);
+        }
+    }
+}
@@ -35,6 +35,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    private final int threadPriority;
 
     // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
     class SocketChannelAndParser {
@@ -79,6 +80,11 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(Thread.MIN_PRIORITY);
+    }
+
+    NioClientManager(int threadPriority) {
+        this.threadPriority = threadPriority;
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
@@ -89,7 +95,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     @Override
     public void run() {
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+            Thread.currentThread().setPriority(threadPriority);
             while (isRunning()) {
                 SocketChannelAndParser conn;
                 while ((conn = newConnectionChannels.poll()) != null) {
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Tracks when stored channels expire, for both {@link StoredPaymentChannelClientStates} and
+ * {@link StoredPaymentChannelServerStates}. It's a hashed timing wheel: scheduling and expiring a channel cost the same
+ * however many channels are waiting, and everything that falls due in the same tick is handed over in one batch, so a
+ * store can remove the lot with a single wallet update rather than one per channel.</p>
+ *
+ * <p>Handlers run on the wheel's one thread and so should hand the slow part, broadcasting transactions, to
+ * {@link #closeExecutor()} which runs a few closures at a time.</p>
+ */
+class ChannelExpiryWheel {
+    private static final Logger log = LoggerFactory.getLogger(ChannelExpiryWheel.class);
+
+    /** How many channels are closed at once by {@link #closeExecutor()}. */
+    static final int MAX_CONCURRENT_CLOSES = 4;
+
+    private static final ChannelExpiryWheel shared = new ChannelExpiryWheel(1000, 512);
+
+    /** Receives channels that have expired. */
+    interface Handler<T> {
+        /** Called on the wheel's thread with all the channels that expired in one tick, in no particular order. */
+        void expired(List<T> channels);
+    }
+
+    private static class Entry {
+        final Object channel;
+        final Handler<?> handler;
+        final long tick;
+
+        Entry(Object channel, Handler<?> handler, long tick) {
+            this.channel = channel;
+            this.handler = handler;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final ScheduledThreadPoolExecutor ticker;
+    private final ThreadPoolExecutor closer;
+
+    private final ReentrantLock lock = Threading.lock("ChannelExpiryWheel");
+    @GuardedBy("lock") private final List<Set<Entry>> buckets;
+    // The entry of each channel waiting to expire, so it can be found again to unschedule it.
+    @GuardedBy("lock") private final Map<Object, Entry> scheduled = new IdentityHashMap<Object, Entry>();
+    // The first tick that hasn't been processed yet.
+    @GuardedBy("lock") private long nextTick;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    ChannelExpiryWheel(long tickMillis, int wheelSize) {
+        checkArgument(tickMillis > 0 && wheelSize > 0);
+        this.tickMillis = tickMillis;
+        this.startMillis = System.currentTimeMillis();
+        buckets = new ArrayList<Set<Entry>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++)
+            buckets.add(new LinkedHashSet<Entry>());
+        ticker = new ScheduledThreadPoolExecutor(1, threadFactory("Channel expiry wheel"));
+        ticker.scheduleAtFixedRate(tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        closer = new ThreadPoolExecutor(MAX_CONCURRENT_CLOSES, MAX_CONCURRENT_CLOSES, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory("Channel closer %d"));
+        closer.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory threadFactory(String nameFormat) {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat);
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        return builder.build();
+    }
+
+    /** Returns the wheel shared by all channel stores. */
+    static ChannelExpiryWheel get() {
+        return shared;
+    }
+
+    /**
+     * Hands the given channel to the handler once the given time, according to {@link Utils#currentTimeMillis()}, has
+     * passed. A time in the past expires the channel on the next tick. Scheduling a channel again replaces the time
+     * it was scheduled for before.
+     */
+    <T> void schedule(T channel, long expiryTimeMillis, Handler<T> handler) {
+        // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
+        long deadline = expiryTimeMillis + (System.currentTimeMillis() - Utils.currentTimeMillis());
+        long tick = deadline <= startMillis ? 0 : (deadline - startMillis + tickMillis - 1) / tickMillis;
+        lock.lock();
+        try {
+            tick = Math.max(tick, nextTick);
+            Entry entry = new Entry(checkNotNull(channel), checkNotNull(handler), tick);
+            removeLocked(scheduled.put(channel, entry));
+            buckets.get((int) (tick % buckets.size())).add(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the given channel from being handed to its handler, eg because it was closed. The wheel no longer holds on
+     * to it or to its handler afterwards. Does nothing if the channel isn't scheduled or is already being expired.
+     */
+    void unschedule(Object channel) {
+        lock.lock();
+        try {
+            removeLocked(scheduled.remove(channel));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removeLocked(Entry entry) {
+        if (entry != null)
+            buckets.get((int) (entry.tick % buckets.size())).remove(entry);
+    }
+
+    /** Runs closures of expired channels, a few at a time. */
+    Executor closeExecutor() {
+        return closer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void tick() {
+        long now = (System.currentTimeMillis() - startMillis) / tickMillis;
+        Map<Handler<?>, List<Object>> expired = new LinkedHashMap<Handler<?>, List<Object>>();
+        lock.lock();
+        try {
+            // If we fell behind by more than a whole turn, every bucket is looked at once.
+            long last = Math.min(now, nextTick + buckets.size() - 1);
+            for (long t = nextTick; t <= last; t++) {
+                Iterator<Entry> it = buckets.get((int) (t % buckets.size())).iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    if (entry.tick > now)
+                        continue;  // Due on a later turn of the wheel.
+                    it.remove();
+                    scheduled.remove(entry.channel);
+                    List<Object> channels = expired.get(entry.handler);
+                    if (channels == null)
+                        expired.put(entry.handler, channels = new ArrayList<Object>());
+                    channels.add(entry.channel);
+                }
+            }
+            nextTick = Math.max(nextTick, now + 1);
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Handler<?>, List<Object>> entry : expired.entrySet()) {
+            try {
+                ((Handler<Object>) entry.getKey()).expired(entry.getValue());
+            } catch (Throwable e) {
+                // Don't let one store kill the wheel for all the others.
+                log.error("Exception expiring channels", e);
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    handler.uncaughtException(Thread.currentThread(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An append-only log of payments received on the channels in a {@link StoredPaymentChannelServerStates}, so that a
+ * payment costs one small write rather than serializing every open channel and saving the whole wallet.</p>
+ *
+ * <p>Each payment appends the contract hash, the new value and the client's signature. Writes are forced to disk in
+ * batches by a background thread, {@link #append(StoredServerChannel)} returns a future which completes once its record
+ * is on disk. Every so many records the journal is compacted: the channels are written into the wallet, which must be
+ * auto saving, and once the wallet has been saved the records it took in are dropped from the journal. Payments carry
+ * on being appended while the wallet is saved. A journal whose wallet isn't auto saving is never compacted.</p>
+ *
+ * <p>Opening a journal replays it over the channels loaded from the wallet, so a channel whose latest payments only
+ * made it into the journal resumes with its highest value. Records for channels which have since been closed are
+ * ignored, as is a record cut short by a crash.</p>
+ */
+public class PaymentChannelServerJournal {
+    private static final Logger log = LoggerFactory.getLogger(PaymentChannelServerJournal.class);
+
+    /** By default the journal is compacted into the wallet after this many payments. */
+    public static final int DEFAULT_COMPACT_AFTER_RECORDS = 10000;
+    /** By default records are forced to disk at most this long after being appended. */
+    public static final long DEFAULT_SYNC_DELAY_MILLIS = 20;
+
+    // Record length, then the record, then the CRC32 of the record.
+    private static final int RECORD_PREFIX_BYTES = 4;
+    private static final int RECORD_SUFFIX_BYTES = 4;
+    // Contract hash and value, followed by the signature.
+    private static final int RECORD_FIXED_BYTES = 32 + 8;
+    private static final int MAX_SIGNATURE_BYTES = 100;
+
+    private final Wallet wallet;
+    private final StoredPaymentChannelServerStates channels;
+    private final int compactAfterRecords;
+    private final long syncDelayMillis;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final File path;
+    private final ReentrantLock lock = Threading.lock("PaymentChannelServerJournal");
+    // Replaced with a copy holding only the records after a compaction point when one is dropped.
+    @GuardedBy("lock") private RandomAccessFile file;
+    @GuardedBy("lock") private FileChannel channel;
+    @GuardedBy("lock") private int records;
+    @GuardedBy("lock") private boolean compactionPending;
+    // Futures of records which have been written but not yet forced to disk.
+    @GuardedBy("lock") private List<SettableFuture<Void>> unsynced = new ArrayList<SettableFuture<Void>>();
+
+    private final Runnable syncer = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    private final Runnable compactor = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    /**
+     * Opens the given journal, creating it if needed, using the default compaction and sync settings. Any records in
+     * it are replayed onto the given channels, which should already have been loaded from the wallet.
+     */
+    public PaymentChannelServerJournal(File file, Wallet wallet, StoredPaymentChannelServerStates channels)
+            throws IOException {
+        this(file, wallet, channels, DEFAULT_COMPACT_AFTER_RECORDS, DEFAULT_SYNC_DELAY_MILLIS);
+    }
+
+    /**
+     * Opens the given journal, creating it if needed. Any records in it are replayed onto the given channels, which
+     * should already have been loaded from the wallet.
+     *
+     * @param compactAfterRecords How many payments may be appended before the journal is compacted into the wallet.
+     * @param syncDelayMillis How long to wait for more records before forcing them to disk, trading latency of the
+     *                        futures returned by {@link #append(StoredServerChannel)} for fewer disk syncs.
+     */
+    public PaymentChannelServerJournal(File file, Wallet wallet, StoredPaymentChannelServerStates channels,
+                                       int compactAfterRecords, long syncDelayMillis) throws IOException {
+        checkArgument(compactAfterRecords > 0 && syncDelayMillis >= 0);
+        this.wallet = checkNotNull(wallet);
+        this.channels = checkNotNull(channels);
+        this.compactAfterRecords = compactAfterRecords;
+        this.syncDelayMillis = syncDelayMillis;
+        final ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Payment channel journal thread");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.executor = new ScheduledThreadPoolExecutor(1, builder.build());
+        this.path = checkNotNull(file);
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        replay();
+    }
+
+    /**
+     * Appends the current value and signature of the given channel to the journal, instead of saving the wallet.
+     *
+     * @return a future which completes once the record is on disk, or fails if it couldn't be written.
+     */
+    public ListenableFuture<Void> append(StoredServerChannel storedChannel) {
+        ByteBuffer record;
+        synchronized (storedChannel) {
+            record = encode(storedChannel.contract.getHash(), storedChannel.bestValueToMe,
+                    storedChannel.bestValueSignature);
+        }
+        SettableFuture<Void> future = SettableFuture.create();
+        IOException failure = null;
+        lock.lock();
+        try {
+            while (record.hasRemaining())
+                channel.write(record);
+            records++;
+            if (unsynced.isEmpty())
+                executor.schedule(syncer, syncDelayMillis, TimeUnit.MILLISECONDS);
+            unsynced.add(future);
+            if (records >= compactAfterRecords && !compactionPending) {
+                compactionPending = true;
+                executor.execute(compactor);
+            }
+        } catch (IOException e) {
+            log.error("Failed to append to payment channel journal, saving the wallet instead", e);
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null) {
+            // The payment is only safe if the wallet really was written.
+            try {
+                if (wallet.addOrUpdateExtensionAndSave(channels))
+                    future.set(null);
+                else
+                    future.setException(failure);
+            } catch (IOException e) {
+                log.error("Failed to save the wallet after failing to append to payment channel journal", e);
+                future.setException(e);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Writes the channels into the wallet and saves it, then drops the records written before the save began from the
+     * journal. Nothing is dropped if the wallet isn't auto saving or couldn't be saved. Happens automatically every so
+     * many records, but can be called at any time, eg before shutting down.
+     */
+    public void compact() {
+        long folded;
+        lock.lock();
+        try {
+            compactionPending = false;
+            // Wait for as many records again before trying again if this fails.
+            records = 0;
+            // Each channel is updated before its record is appended, so the copy of the channels the wallet takes
+            // below holds everything recorded before this point. Appends carry on meanwhile.
+            folded = channel.position();
+        } catch (IOException e) {
+            log.error("Failed to compact payment channel journal, keeping it", e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (!wallet.addOrUpdateExtensionAndSave(channels)) {
+                log.warn("Not compacting payment channel journal as the wallet isn't auto saving");
+                return;
+            }
+        } catch (IOException e) {
+            log.error("Failed to save the wallet, keeping the payment channel journal", e);
+            return;
+        }
+        lock.lock();
+        try {
+            dropRecordsBefore(folded);
+        } catch (IOException e) {
+            log.error("Failed to compact payment channel journal, keeping it", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the records before the given offset, keeping any written after it.
+    @GuardedBy("lock")
+    private void dropRecordsBefore(long offset) throws IOException {
+        long end = channel.position();
+        if (end == offset) {
+            forceLocked();
+            channel.truncate(0);
+            channel.force(true);
+            return;
+        }
+        ByteBuffer tail = ByteBuffer.allocate((int) (end - offset));
+        while (tail.hasRemaining() && channel.read(tail, offset + tail.position()) >= 0) ;
+        tail.flip();
+        // Write the records to keep to a new file and rename it into place, so that a crash leaves either journal
+        // whole rather than the records after the offset half moved.
+        File temp = new File(path.getPath() + ".tmp");
+        RandomAccessFile tempFile = new RandomAccessFile(temp, "rw");
+        FileChannel tempChannel = tempFile.getChannel();
+        try {
+            tempChannel.truncate(0);
+            while (tail.hasRemaining())
+                tempChannel.write(tail);
+            tempChannel.force(true);
+            if (Utils.isWindows()) {
+                // Windows can neither rename over a file nor delete one that's open.
+                file.close();
+                path.delete();
+            }
+            if (!temp.renameTo(path))
+                throw new IOException("Failed to rename " + temp + " to " + path);
+        } catch (IOException e) {
+            tempFile.close();
+            temp.delete();
+            throw e;
+        }
+        file.close();
+        file = tempFile;
+        channel = tempChannel;
+        // The records that weren't forced yet are in the new file, which has been.
+        List<SettableFuture<Void>> futures = unsynced;
+        unsynced = new ArrayList<SettableFuture<Void>>();
+        for (SettableFuture<Void> future : futures)
+            future.set(null);
+    }
+
+    /** Forces any outstanding records to disk, compacts the journal and closes it. */
+    public void close() throws IOException {
+        compact();
+        executor.shutdown();
+        lock.lock();
+        try {
+            file.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync() {
+        lock.lock();
+        try {
+            forceLocked();
+        } catch (IOException e) {
+            log.error("Failed to sync payment channel journal", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void forceLocked() throws IOException {
+        if (unsynced.isEmpty())
+            return;
+        List<SettableFuture<Void>> futures = unsynced;
+        unsynced = new ArrayList<SettableFuture<Void>>();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            for (SettableFuture<Void> future : futures)
+                future.setException(e);
+            throw e;
+        }
+        for (SettableFuture<Void> future : futures)
+            future.set(null);
+    }
+
+    private static ByteBuffer encode(Sha256Hash contractHash, BigInteger value, byte[] signature) {
+        int length = RECORD_FIXED_BYTES + (signature == null ? 0 : signature.length);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_PREFIX_BYTES + length + RECORD_SUFFIX_BYTES);
+        buffer.putInt(length);
+        buffer.put(contractHash.getBytes());
+        buffer.putLong(value.longValue());
+        if (signature != null)
+            buffer.put(signature);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), RECORD_PREFIX_BYTES, length);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    // Applies the records in the file to the channels, then cuts off anything after the last good record.
+    private void replay() throws IOException {
+        lock.lock();
+        try {
+            long size = channel.size();
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+            channel.position(0);
+            while (data.hasRemaining() && channel.read(data) >= 0) ;
+            data.flip();
+            int applied = 0;
+            while (data.remaining() >= RECORD_PREFIX_BYTES) {
+                int start = data.position();
+                int length = data.getInt();
+                if (length < RECORD_FIXED_BYTES || length > RECORD_FIXED_BYTES + MAX_SIGNATURE_BYTES ||
+                        data.remaining() < length + RECORD_SUFFIX_BYTES) {
+                    data.position(start);
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data.array(), data.position(), length);
+                byte[] hash = new byte[32];
+                data.get(hash);
+                long value = data.getLong();
+                byte[] signature = null;
+                if (length > RECORD_FIXED_BYTES) {
+                    signature = new byte[length - RECORD_FIXED_BYTES];
+                    data.get(signature);
+                }
+                if (data.getInt() != (int) crc.getValue()) {
+                    data.position(start);
+                    break;
+                }
+                records++;
+                StoredServerChannel storedChannel = channels.getChannel(new Sha256Hash(hash));
+                if (storedChannel == null)
+                    continue;  // Closed since.
+                synchronized (storedChannel) {
+                    if (BigInteger.valueOf(value).compareTo(storedChannel.bestValueToMe) > 0) {
+                        storedChannel.updateValueToMe(BigInteger.valueOf(value), signature);
+                        applied++;
+                    }
+                }
+            }
+            if (data.position() < size)
+                log.warn("Discarding {} bytes from the end of the payment channel journal", size - data.position());
+            channel.truncate(data.position());
+            channel.position(data.position());
+            log.info("Replayed {} payment channel journal records, {} were newer than the wallet", records, applied);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -22,6 +22,8 @@ import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.net.NioServer;
 import com.google.bitcoin.net.ProtobufParser;
 import com.google.bitcoin.net.StreamParserFactory;
+import com.google.bitcoin.utils.SerialExecutor;
+import com.google.bitcoin.utils.Threading;
 import org.bitcoin.paymentchannel.Protos;
 
 import javax.annotation.Nullable;
@@ -30,6 +32,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -50,6 +53,8 @@ public class PaymentChannelServerListener {
     private NioServer server;
     private final int timeoutSeconds;
 
+    @Nullable private volatile Executor messageExecutor;
+
     /**
      * A factory which generates connection-specific event handlers.
      */
@@ -84,31 +89,55 @@ public class PaymentChannelServerListener {
                 }
             });
 
+            // Messages of one connection are handled in order, but if there's a message executor, off the network
+            // thread and in parallel with those of other connections.
+            final Executor executor = messageExecutor == null ? Threading.SAME_THREAD : new SerialExecutor(messageExecutor);
             protobufHandlerListener = new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
                 @Override
-                public synchronized void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
-                    paymentChannelManager.receiveMessage(msg);
+                public void messageReceived(ProtobufParser handler, final Protos.TwoWayChannelMessage msg) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (ServerHandler.this) {
+                                paymentChannelManager.receiveMessage(msg);
+                            }
+                        }
+                    });
                 }
 
                 @Override
-                public synchronized void connectionClosed(ProtobufParser handler) {
-                    paymentChannelManager.connectionClosed();
-                    if (closeReason != null)
-                        eventHandler.channelClosed(closeReason);
-                    else
-                        eventHandler.channelClosed(PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED);
-                    eventHandler.setConnectionChannel(null);
+                public void connectionClosed(ProtobufParser handler) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (ServerHandler.this) {
+                                paymentChannelManager.connectionClosed();
+                                if (closeReason != null)
+                                    eventHandler.channelClosed(closeReason);
+                                else
+                                    eventHandler.channelClosed(PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED);
+                                eventHandler.setConnectionChannel(null);
+                            }
+                        }
+                    });
                 }
 
                 @Override
-                public synchronized void connectionOpen(ProtobufParser handler) {
-                    ServerConnectionEventHandler eventHandler = eventHandlerFactory.onNewConnection(address);
-                    if (eventHandler == null)
-                        handler.closeConnection();
-                    else {
-                        ServerHandler.this.eventHandler = eventHandler;
-                        paymentChannelManager.connectionOpen();
-                    }
+                public void connectionOpen(final ProtobufParser handler) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (ServerHandler.this) {
+                                ServerConnectionEventHandler eventHandler = eventHandlerFactory.onNewConnection(address);
+                                if (eventHandler == null)
+                                    handler.closeConnection();
+                                else {
+                                    ServerHandler.this.eventHandler = eventHandler;
+                                    paymentChannelManager.connectionOpen();
+                                }
+                            }
+                        }
+                    });
                 }
             };
 
@@ -131,6 +160,21 @@ public class PaymentChannelServerListener {
         private final ProtobufParser.Listener<Protos.TwoWayChannelMessage> protobufHandlerListener;
     }
 
+    /**
+     * <p>Handles the messages of each connection on the given executor instead of on the network thread, which then only
+     * reads and writes sockets. The messages of any one connection are still handled one at a time and in order, while
+     * different channels are verified and updated in parallel on the executor's threads, so a pool about the size of the
+     * number of cores lets the server scale to many busy channels. Pass null to handle messages on the network thread,
+     * the default.</p>
+     *
+     * <p>Affects connections accepted after the call, so should be called before {@link #bindAndStart(int)}. Consider
+     * also {@link StoredPaymentChannelServerStates#setJournal(PaymentChannelServerJournal)}, otherwise every payment
+     * saves the wallet.</p>
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.messageExecutor = executor;
+    }
+
     /**
      * Binds to the given port and starts accepting new client connections.
      * @throws Exception If binding to the given port fails (eg SocketException: Permission denied for privileged ports)
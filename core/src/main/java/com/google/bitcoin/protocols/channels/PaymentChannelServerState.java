@@ -111,8 +111,15 @@ public class PaymentChannelServerState {
 
     private long minExpireTime;
 
+    // Hashes payment transactions without building them, created on the first payment.
+    private PaymentSigHashTemplate sigHashTemplate;
+
     private StoredServerChannel storedServerChannel = null;
 
+    // Looked up in the wallet once rather than taking the wallet lock, which all channels share, on every payment.
+    private Transaction walletContract;
+    private StoredPaymentChannelServerStates storedStates;
+
     PaymentChannelServerState(StoredServerChannel storedServerChannel, Wallet wallet, TransactionBroadcaster broadcaster) throws VerificationException {
         synchronized (storedServerChannel) {
             this.wallet = checkNotNull(wallet);
@@ -302,8 +309,10 @@ public class PaymentChannelServerState {
         // Get the wallet's copy of the multisigContract (ie with confidence information), if this is null, the wallet
         // was not connected to the peergroup when the contract was broadcast (which may cause issues down the road, and
         // disables our double-spend check next)
-        Transaction walletContract = wallet.getTransaction(multisigContract.getHash());
-        checkNotNull(walletContract, "Wallet did not contain multisig contract {} after state was marked READY", multisigContract.getHash());
+        if (walletContract == null) {
+            walletContract = wallet.getTransaction(multisigContract.getHash());
+            checkNotNull(walletContract, "Wallet did not contain multisig contract {} after state was marked READY", multisigContract.getHash());
+        }
 
         // Note that we check for DEAD state here, but this test is essentially useless in production because we will
         // miss most double-spends due to bloom filtering right now anyway. This will eventually fixed by network-wide
@@ -324,14 +333,19 @@ public class PaymentChannelServerState {
         if (signature.sigHashMode() != mode || !signature.anyoneCanPay())
             throw new VerificationException("New payment signature was not signed with the right SIGHASH flags.");
 
-        Wallet.SendRequest req = makeUnsignedChannelContract(newValueToMe);
         // Now check the signature is correct.
         // Note that the client must sign with SIGHASH_{SINGLE/NONE} | SIGHASH_ANYONECANPAY to allow us to add additional
         // inputs (in case we need to add significant fee, or something...) and any outputs we want to pay to.
-        Sha256Hash sighash = req.tx.hashForSignature(0, multisigScript, mode, true);
+        // As that leaves only the refund value changing between payments, the hash comes from a template rather than
+        // building and simplifying the payment transaction each time.
+        if (sigHashTemplate == null)
+            sigHashTemplate = new PaymentSigHashTemplate(wallet.getParams(), multisigContract, clientOutput);
+        Sha256Hash sighash = sigHashTemplate.hashForRefund(refundSize);
 
         if (!clientKey.verify(sighash, signature))
-            throw new VerificationException("Signature does not verify on tx\n" + req.tx);
+            throw new VerificationException("Signature does not verify on tx\n" + makeUnsignedChannelContract(newValueToMe).tx);
+        if (!fullyUsedUp)
+            clientOutput.setValue(refundSize);
         bestValueToMe = newValueToMe;
         bestValueSignature = signatureBytes;
         updateChannelInWallet();
@@ -470,9 +484,25 @@ public class PaymentChannelServerState {
     private synchronized void updateChannelInWallet() {
         if (storedServerChannel != null) {
             storedServerChannel.updateValueToMe(bestValueToMe, bestValueSignature);
-            StoredPaymentChannelServerStates channels = (StoredPaymentChannelServerStates)
-                    wallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
-            wallet.addOrUpdateExtension(channels);
+            if (storedStates == null)
+                storedStates = (StoredPaymentChannelServerStates)
+                        wallet.getExtensions().get(StoredPaymentChannelServerStates.EXTENSION_ID);
+            StoredPaymentChannelServerStates channels = storedStates;
+            PaymentChannelServerJournal journal = channels.getJournal();
+            if (journal != null) {
+                final BigInteger value = bestValueToMe;
+                Futures.addCallback(journal.append(storedServerChannel), new FutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        log.error("Failed to record payment of {} in the payment channel journal", value, t);
+                    }
+                });
+            } else
+                wallet.addOrUpdateExtension(channels);
         }
     }
 
@@ -495,6 +525,7 @@ public class PaymentChannelServerState {
         log.info("Storing state with contract hash {}.", multisigContract.getHash());
         StoredPaymentChannelServerStates channels = (StoredPaymentChannelServerStates)
                 wallet.addOrGetExistingExtension(new StoredPaymentChannelServerStates(wallet, broadcaster));
+        storedStates = channels;
         storedServerChannel = new StoredServerChannel(this, multisigContract, clientOutput, refundTransactionUnlockTimeSecs, serverKey, bestValueToMe, bestValueSignature);
         if (connectedHandler != null)
             checkState(storedServerChannel.setConnectedHandler(connectedHandler, false) == connectedHandler);
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptOpCodes;
+
+import java.math.BigInteger;
+
+/**
+ * <p>Calculates the signature hashes of the payment transactions of one channel without building them.</p>
+ *
+ * <p>A client signs payments with SIGHASH_SINGLE|SIGHASH_ANYONECANPAY, so the hash covers only the input spending the
+ * contract and the output back to the client, and from one payment to the next only the value of that output changes.
+ * The simplified transaction is serialized once and each payment patches in its value and hashes it, which is
+ * exactly what {@link Transaction#hashForSignature(int, Script, Transaction.SigHash, boolean)} would give for the
+ * transaction built by the server state. A payment which leaves nothing for the client is signed with SIGHASH_NONE
+ * and always has the same hash.</p>
+ *
+ * <p>Not thread safe, the state object calls it with its lock held.</p>
+ */
+class PaymentSigHashTemplate {
+    private final byte[] template;
+    private final int valueOffset;
+    private final Sha256Hash fullyUsedUpHash;
+
+    PaymentSigHashTemplate(NetworkParameters params, Transaction multisigContract, TransactionOutput clientOutput) {
+        byte[] connectedScript = Script.removeAllInstancesOfOp(multisigContract.getOutput(0).getScriptBytes(),
+                ScriptOpCodes.OP_CODESEPARATOR);
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, connectedScript,
+                new TransactionOutPoint(params, 0, multisigContract)));
+        fullyUsedUpHash = tx.hashForSignature(0, connectedScript,
+                (byte) TransactionSignature.calcSigHashValue(Transaction.SigHash.NONE, true));
+
+        byte[] clientScript = clientOutput.getScriptBytes();
+        tx.addOutput(new TransactionOutput(params, tx, BigInteger.ZERO, clientScript));
+        byte[] serialized = tx.bitcoinSerialize();
+        template = new byte[serialized.length + 4];
+        System.arraycopy(serialized, 0, template, 0, serialized.length);
+        Utils.uint32ToByteArrayLE(0xff & TransactionSignature.calcSigHashValue(Transaction.SigHash.SINGLE, true),
+                template, serialized.length);
+        // The client output is the last thing before the lock time: value, script length, script.
+        valueOffset = serialized.length - 4 - clientScript.length - VarInt.sizeOf(clientScript.length) - 8;
+    }
+
+    /** Returns the hash the client must sign to be refunded the given value, zero meaning nothing is refunded. */
+    Sha256Hash hashForRefund(BigInteger refundSize) {
+        if (refundSize.signum() == 0)
+            return fullyUsedUpHash;
+        Utils.uint64ToByteArrayLE(refundSize.longValue(), template, valueOffset);
+        byte[] hash = new byte[32];
+        Utils.doubleDigest(template, 0, template.length, hash, 0);
+        return new Sha256Hash(hash);
+    }
+}
@@ -27,10 +27,8 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.Date;
+import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -45,13 +43,36 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
     static final String EXTENSION_ID = StoredPaymentChannelClientStates.class.getName();
 
     @GuardedBy("lock") @VisibleForTesting final HashMultimap<Sha256Hash, StoredClientChannel> mapChannels = HashMultimap.create();
-    @VisibleForTesting final Timer channelTimeoutHandler = new Timer(true);
 
     private Wallet containingWallet;
     private final TransactionBroadcaster announcePeerGroup;
 
     protected final ReentrantLock lock = Threading.lock("StoredPaymentChannelClientStates");
 
+    private final ChannelExpiryWheel.Handler<StoredClientChannel> expiryHandler =
+            new ChannelExpiryWheel.Handler<StoredClientChannel>() {
+        @Override
+        public void expired(List<StoredClientChannel> channels) {
+            lock.lock();
+            try {
+                for (StoredClientChannel channel : channels)
+                    mapChannels.remove(channel.id, channel);
+            } finally {
+                lock.unlock();
+            }
+            containingWallet.addOrUpdateExtension(StoredPaymentChannelClientStates.this);
+            for (final StoredClientChannel channel : channels) {
+                ChannelExpiryWheel.get().closeExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        announcePeerGroup.broadcastTransaction(channel.contract);
+                        announcePeerGroup.broadcastTransaction(channel.refund);
+                    }
+                });
+            }
+        }
+    };
+
     /**
      * Creates a new StoredPaymentChannelClientStates and associates it with the given {@link Wallet} and
      * {@link TransactionBroadcaster} which are used to complete and announce contract and refund
@@ -169,15 +190,7 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
         lock.lock();
         try {
             mapChannels.put(channel.id, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    removeChannel(channel);
-                    announcePeerGroup.broadcastTransaction(channel.contract);
-                    announcePeerGroup.broadcastTransaction(channel.refund);
-                }
-                // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            }, new Date(channel.expiryTimeSeconds() * 1000 + (System.currentTimeMillis() - Utils.currentTimeMillis())));
+            ChannelExpiryWheel.get().schedule(channel, channel.expiryTimeSeconds() * 1000, expiryHandler);
         } finally {
             lock.unlock();
         }
@@ -189,14 +202,13 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
      * <p>Removes the channel with the given id from this set of stored states and notifies the wallet of an update to
      * this wallet extension.</p>
      *
-     * <p>Note that the channel will still have its contract and refund transactions broadcast via the connected
-     * {@link TransactionBroadcaster} as long as this {@link StoredPaymentChannelClientStates} continues to
-     * exist in memory.</p>
+     * <p>The channel will no longer have its contract and refund transactions broadcast when it expires.</p>
      */
     void removeChannel(StoredClientChannel channel) {
         lock.lock();
         try {
             mapChannels.remove(channel.id, channel);
+            ChannelExpiryWheel.get().unschedule(channel);
         } finally {
             lock.unlock();
         }
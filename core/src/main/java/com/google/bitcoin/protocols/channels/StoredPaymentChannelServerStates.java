@@ -17,34 +17,63 @@
 package com.google.bitcoin.protocols.channels;
 
 import com.google.bitcoin.core.*;
-import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
-import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.*;
 
 /**
- * Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
- * unlock.
+ * <p>Keeps track of a set of {@link StoredServerChannel}s and expires them 2 hours before their refund transactions
+ * unlock.</p>
+ *
+ * <p>The channels are kept in a map striped over many locks, so that connections to different channels don't contend
+ * when they look up, open or close their channels. To avoid all payments also queueing on the wallet to save it, see
+ * {@link #setJournal(PaymentChannelServerJournal)}.</p>
  */
 public class StoredPaymentChannelServerStates implements WalletExtension {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(StoredPaymentChannelServerStates.class);
 
     static final String EXTENSION_ID = StoredPaymentChannelServerStates.class.getName();
 
-    @GuardedBy("lock") @VisibleForTesting final Map<Sha256Hash, StoredServerChannel> mapChannels = new HashMap<Sha256Hash, StoredServerChannel>();
+    // The number of lock stripes of the channel map, roughly how many threads can update it at once.
+    private static final int CONCURRENCY_LEVEL = 64;
+
+    @VisibleForTesting final ConcurrentHashMap<Sha256Hash, StoredServerChannel> mapChannels =
+            new ConcurrentHashMap<Sha256Hash, StoredServerChannel>(16, 0.75f, CONCURRENCY_LEVEL);
     private final Wallet wallet;
     private final TransactionBroadcaster broadcaster;
 
-    private final Timer channelTimeoutHandler = new Timer(true);
+    private final ChannelExpiryWheel.Handler<StoredServerChannel> expiryHandler =
+            new ChannelExpiryWheel.Handler<StoredServerChannel>() {
+        @Override
+        public void expired(List<StoredServerChannel> channels) {
+            List<StoredServerChannel> removed = new ArrayList<StoredServerChannel>(channels.size());
+            for (StoredServerChannel channel : channels) {
+                log.info("Auto-closing channel: {}", channel);
+                if (mapChannels.remove(channel.contract.getHash(), channel))
+                    removed.add(channel);
+            }
+            if (removed.isEmpty())
+                return;
+            wallet.addOrUpdateExtension(StoredPaymentChannelServerStates.this);
+            for (final StoredServerChannel channel : removed) {
+                ChannelExpiryWheel.get().closeExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeRemovedChannel(channel);
+                    }
+                });
+            }
+        }
+    };
 
-    private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
+    @Nullable private volatile PaymentChannelServerJournal journal;
 
     /**
      * The offset between the refund transaction's lock time and the time channels will be automatically closed.
@@ -73,13 +102,14 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * this wallet extension.</p>
      */
     public void closeChannel(StoredServerChannel channel) {
-        lock.lock();
-        try {
-            if (mapChannels.remove(channel.contract.getHash()) == null)
-                return;
-        } finally {
-            lock.unlock();
-        }
+        if (!mapChannels.remove(channel.contract.getHash(), channel))
+            return;
+        ChannelExpiryWheel.get().unschedule(channel);
+        closeRemovedChannel(channel);
+        wallet.addOrUpdateExtension(this);
+    }
+
+    private void closeRemovedChannel(StoredServerChannel channel) {
         synchronized (channel) {
             channel.closeConnectedHandler();
             try {
@@ -91,19 +121,13 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
             }
             channel.state = null;
         }
-        wallet.addOrUpdateExtension(this);
     }
 
     /**
      * Gets the {@link StoredServerChannel} with the given channel id (ie contract transaction hash).
      */
     public StoredServerChannel getChannel(Sha256Hash id) {
-        lock.lock();
-        try {
-            return mapChannels.get(id);
-        } finally {
-            lock.unlock();
-        }
+        return mapChannels.get(id);
     }
 
     /**
@@ -114,23 +138,24 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
      * channel is already present in the set of channels.</p>
      */
     public void putChannel(final StoredServerChannel channel) {
-        lock.lock();
-        try {
-            checkArgument(mapChannels.put(channel.contract.getHash(), checkNotNull(channel)) == null);
-            // Add the difference between real time and Utils.now() so that test-cases can use a mock clock.
-            Date autocloseTime = new Date((channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L
-                    + (System.currentTimeMillis() - Utils.currentTimeMillis()));
-            log.info("Scheduling channel for automatic closure at {}: {}", autocloseTime, channel);
-            channelTimeoutHandler.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    log.info("Auto-closing channel: {}", channel);
-                    closeChannel(channel);
-                }
-            }, autocloseTime);
-        } finally {
-            lock.unlock();
-        }
+        checkArgument(mapChannels.putIfAbsent(channel.contract.getHash(), checkNotNull(channel)) == null);
+        long autocloseTime = (channel.refundTransactionUnlockTimeSecs + CHANNEL_EXPIRE_OFFSET) * 1000L;
+        log.info("Scheduling channel for automatic closure at {}: {}", new Date(autocloseTime), channel);
+        ChannelExpiryWheel.get().schedule(channel, autocloseTime, expiryHandler);
+    }
+
+    /**
+     * Records payments on these channels in the given journal instead of saving the wallet after each one. Pass null
+     * to go back to saving the wallet.
+     */
+    public void setJournal(@Nullable PaymentChannelServerJournal journal) {
+        this.journal = journal;
+    }
+
+    /** Returns the journal set with {@link #setJournal(PaymentChannelServerJournal)}, if any. */
+    @Nullable
+    public PaymentChannelServerJournal getJournal() {
+        return journal;
     }
 
     @Override
@@ -145,63 +170,55 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     @Override
     public byte[] serializeWalletExtension() {
-        lock.lock();
-        try {
-            ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
-            for (StoredServerChannel channel : mapChannels.values()) {
-                // First a few asserts to make sure things won't break
-                checkState(channel.bestValueToMe.signum() >= 0 && channel.bestValueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
-                checkState(channel.refundTransactionUnlockTimeSecs > 0);
-                checkNotNull(channel.myKey.getPrivKeyBytes());
-                ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
-                        .setBestValueToMe(channel.bestValueToMe.longValue())
-                        .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
-                        .setContractTransaction(ByteString.copyFrom(channel.contract.bitcoinSerialize()))
-                        .setClientOutput(ByteString.copyFrom(channel.clientOutput.bitcoinSerialize()))
-                        .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
-                if (channel.bestValueSignature != null)
-                    channelBuilder.setBestValueSignature(ByteString.copyFrom(channel.bestValueSignature));
-                builder.addChannels(channelBuilder);
+        ServerState.StoredServerPaymentChannels.Builder builder = ServerState.StoredServerPaymentChannels.newBuilder();
+        for (StoredServerChannel channel : mapChannels.values()) {
+            // Read the value and its signature together, as updateValueToMe changes them together.
+            BigInteger bestValueToMe;
+            byte[] bestValueSignature;
+            synchronized (channel) {
+                bestValueToMe = channel.bestValueToMe;
+                bestValueSignature = channel.bestValueSignature;
             }
-            return builder.build().toByteArray();
-        } finally {
-            lock.unlock();
+            // First a few asserts to make sure things won't break
+            checkState(bestValueToMe.signum() >= 0 && bestValueToMe.compareTo(NetworkParameters.MAX_MONEY) < 0);
+            checkState(channel.refundTransactionUnlockTimeSecs > 0);
+            checkNotNull(channel.myKey.getPrivKeyBytes());
+            ServerState.StoredServerPaymentChannel.Builder channelBuilder = ServerState.StoredServerPaymentChannel.newBuilder()
+                    .setBestValueToMe(bestValueToMe.longValue())
+                    .setRefundTransactionUnlockTimeSecs(channel.refundTransactionUnlockTimeSecs)
+                    .setContractTransaction(ByteString.copyFrom(channel.contract.bitcoinSerialize()))
+                    .setClientOutput(ByteString.copyFrom(channel.clientOutput.bitcoinSerialize()))
+                    .setMyKey(ByteString.copyFrom(channel.myKey.getPrivKeyBytes()));
+            if (bestValueSignature != null)
+                channelBuilder.setBestValueSignature(ByteString.copyFrom(bestValueSignature));
+            builder.addChannels(channelBuilder);
         }
+        return builder.build().toByteArray();
     }
 
     @Override
     public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception {
-        lock.lock();
-        try {
-            checkArgument(containingWallet == wallet);
-            ServerState.StoredServerPaymentChannels states = ServerState.StoredServerPaymentChannels.parseFrom(data);
-            NetworkParameters params = containingWallet.getParams();
-            for (ServerState.StoredServerPaymentChannel storedState : states.getChannelsList()) {
-                StoredServerChannel channel = new StoredServerChannel(null,
-                        new Transaction(params, storedState.getContractTransaction().toByteArray()),
-                        new TransactionOutput(params, null, storedState.getClientOutput().toByteArray(), 0),
-                        storedState.getRefundTransactionUnlockTimeSecs(),
-                        new ECKey(storedState.getMyKey().toByteArray(), null),
-                        BigInteger.valueOf(storedState.getBestValueToMe()),
-                        storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
-                putChannel(channel);
-            }
-        } finally {
-            lock.unlock();
+        checkArgument(containingWallet == wallet);
+        ServerState.StoredServerPaymentChannels states = ServerState.StoredServerPaymentChannels.parseFrom(data);
+        NetworkParameters params = containingWallet.getParams();
+        for (ServerState.StoredServerPaymentChannel storedState : states.getChannelsList()) {
+            StoredServerChannel channel = new StoredServerChannel(null,
+                    new Transaction(params, storedState.getContractTransaction().toByteArray()),
+                    new TransactionOutput(params, null, storedState.getClientOutput().toByteArray(), 0),
+                    storedState.getRefundTransactionUnlockTimeSecs(),
+                    new ECKey(storedState.getMyKey().toByteArray(), null),
+                    BigInteger.valueOf(storedState.getBestValueToMe()),
+                    storedState.hasBestValueSignature() ? storedState.getBestValueSignature().toByteArray() : null);
+            putChannel(channel);
         }
     }
 
     @Override
     public String toString() {
-        lock.lock();
-        try {
-            StringBuilder buf = new StringBuilder();
-            for (StoredServerChannel stored : mapChannels.values()) {
-                buf.append(stored);
-            }
-            return buf.toString();
-        } finally {
-            lock.unlock();
+        StringBuilder buf = new StringBuilder();
+        for (StoredServerChannel stored : mapChannels.values()) {
+            buf.append(stored);
         }
+        return buf.toString();
     }
 }
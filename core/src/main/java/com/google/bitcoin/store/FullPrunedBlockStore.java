@@ -20,6 +20,9 @@ import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutPoint;
+
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -77,6 +80,13 @@ public interface FullPrunedBlockStore extends BlockStore {
      * Gets a {@link StoredTransactionOutput} with the given hash and index, or null if none is found
      */
     StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link StoredTransactionOutput}s for all the given outpoints at once, which stores backed by a database
+     * can do in far fewer round trips than one {@link #getTransactionOutput(Sha256Hash, long)} each.
+     * @return a list the same size as outpoints, holding null where no output is found
+     */
+    List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException;
     
     /**
      * Adds a {@link StoredTransactionOutput} to the list of unspent TransactionOutputs
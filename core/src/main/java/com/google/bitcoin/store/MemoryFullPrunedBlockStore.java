@@ -332,6 +332,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        for (TransactionOutPoint outpoint : outpoints)
+            outputs.add(getTransactionOutput(outpoint.getHash(), outpoint.getIndex()));
+        return outputs;
+    }
+
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
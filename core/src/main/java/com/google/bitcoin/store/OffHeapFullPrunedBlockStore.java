@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.io.File;
+
+/**
+ * <p>Keeps {@link com.google.bitcoin.core.StoredBlock}s and {@link com.google.bitcoin.core.StoredUndoableBlock}s in
+ * memory like {@link MemoryFullPrunedBlockStore}, but the unspent outputs, which are by far the largest part of the
+ * state needed for full verification, go in an off-heap hash table. A chain sized set of outputs then costs the garbage
+ * collector nothing and, if a directory is given, needn't fit in memory either as the table is kept in files the
+ * operating system pages in and out.</p>
+ *
+ * <p>Batch writes of outputs are applied as they happen and undone from a log if the batch is aborted. Unlike the
+ * memory store, changes made during a batch are seen by all threads straight away, which is fine for
+ * {@link com.google.bitcoin.core.FullPrunedBlockChain} as it only uses the store with its lock held.</p>
+ *
+ * <p>Nothing is kept across restarts.</p>
+ */
+public class OffHeapFullPrunedBlockStore extends MemoryFullPrunedBlockStore {
+    private OffHeapTransactionOutputTable outputs;
+
+    /**
+     * Set up the OffHeapFullPrunedBlockStore with the outputs in direct buffers, which count towards the limit set with
+     * -XX:MaxDirectMemorySize.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) throws BlockStoreException {
+        this(params, fullStoreDepth, null, OffHeapTransactionOutputTable.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Set up the OffHeapFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param directory Where to put the files holding the outputs, or null to keep them in direct buffers
+     * @param expectedOutputs How many unspent outputs to make room for up front, saving the table from growing
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, @Nullable File directory,
+                                       int expectedOutputs) throws BlockStoreException {
+        super(params, fullStoreDepth);
+        outputs = new OffHeapTransactionOutputTable(expectedOutputs, directory);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        if (outputs != null)
+            outputs.close();
+        outputs = null;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        return outputs.get(hash, index);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        outputs.put(out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        if (!outputs.remove(out.getHash(), out.getIndex()))
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from OffHeapFullPrunedBlockStore that it didn't have!");
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        for (int i = 0; i < numOutputs; i++)
+            if (outputs.contains(hash, i))
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        super.beginDatabaseBatchWrite();
+        outputs.beginBatch();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        super.commitDatabaseBatchWrite();
+        outputs.commitBatch();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        super.abortDatabaseBatchWrite();
+        outputs.abortBatch();
+    }
+
+    /** Returns how many unspent outputs the store holds. */
+    public synchronized int getUnspentOutputCount() {
+        Preconditions.checkNotNull(outputs, "OffHeapFullPrunedBlockStore is closed");
+        return outputs.size();
+    }
+}
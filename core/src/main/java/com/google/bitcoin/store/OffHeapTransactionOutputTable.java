@@ -0,0 +1,397 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A set of {@link StoredTransactionOutput}s kept outside of the Java heap, so that a full sized set of unspent
+ * outputs neither slows the garbage collector down nor needs a heap big enough to hold it.</p>
+ *
+ * <p>Outputs are found through an open addressing hash table of fixed size slots, each holding the 36 byte outpoint
+ * (transaction hash and index) and where the rest of the output lives. The rest is appended to a separate data area and
+ * never modified in place. Space left behind by removed outputs is reclaimed by copying the live ones once there is
+ * more garbage than outputs. Both live in direct buffers or, if a directory is given, in files mapped from it so that
+ * the operating system can page out what doesn't fit in memory. The files are only scratch space: they are deleted as
+ * soon as they're mapped and nothing is kept across restarts.</p>
+ *
+ * <p>Between {@link #beginBatch()} and {@link #commitBatch()} changes are applied straight away but, before each one,
+ * what the slot held is written to a log so that {@link #abortBatch()} can put it back. As nothing in the data area is
+ * overwritten, the log only needs the outpoint and its previous location.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class OffHeapTransactionOutputTable {
+    // A slot is the four longs of the hash, the index, four bytes of padding and the location of the data.
+    private static final int SLOT_SIZE = 48;
+    private static final int INDEX_OFFSET = 32;
+    private static final int LOCATION_OFFSET = 40;
+    // Locations that don't point at any data.
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    private static final int MAX_SLOTS_PER_SEGMENT_BITS = 16;
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // A record is the value, the height, the length of the script and then the script.
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int FIRST_DATA_SEGMENT_SIZE = 1 << 20;
+    private static final int MAX_DATA_SEGMENT_SIZE = 1 << 26;
+    // Don't bother compacting until at least this much could be reclaimed.
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+    @Nullable private final File directory;
+
+    private ByteBuffer[] slots;
+    private int capacity;
+    private int slotsPerSegmentBits;
+    private int size;
+    private int deleted;
+
+    // Locations are (segment number + 1) << 32 | offset, so that zero is never one.
+    private List<ByteBuffer> data;
+    private ByteBuffer current;
+    private long liveBytes;
+    private long totalBytes;
+
+    private ByteBuffer log;
+    private boolean inBatch;
+
+    // The outpoint being looked at, to avoid passing five values around.
+    private long k0, k1, k2, k3;
+    private int kIndex;
+
+    /**
+     * Creates an empty table able to hold the given number of outputs before it has to grow.
+     *
+     * @param directory where to put the files backing the table, or null to use direct buffers.
+     */
+    OffHeapTransactionOutputTable(int expectedSize, @Nullable File directory) throws BlockStoreException {
+        checkArgument(expectedSize >= 0);
+        this.directory = directory;
+        int capacity = 16;
+        while (capacity * 3L < expectedSize * 4L)
+            capacity <<= 1;
+        slots = allocateSlots(capacity);
+        data = new ArrayList<ByteBuffer>();
+        log = ByteBuffer.allocateDirect(SLOT_SIZE * 64);
+    }
+
+    /** Returns the number of outputs in the table. */
+    int size() {
+        return size;
+    }
+
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        setKey(hash, index);
+        int slot = find();
+        if (slot < 0)
+            return null;
+        long location = locationAt(slot);
+        ByteBuffer segment = data.get((int) (location >>> 32) - 1);
+        int offset = (int) location;
+        long value = segment.getLong(offset);
+        int height = segment.getInt(offset + 8);
+        byte[] scriptBytes = new byte[segment.getInt(offset + 12)];
+        ByteBuffer reader = segment.duplicate();
+        reader.position(offset + RECORD_HEADER_SIZE);
+        reader.get(scriptBytes);
+        // Passing isCoinbase = true keeps the height exactly as it was stored.
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(value), height, true, scriptBytes);
+    }
+
+    boolean contains(Sha256Hash hash, long index) {
+        setKey(hash, index);
+        return find() >= 0;
+    }
+
+    /** Adds the given output, replacing any with the same outpoint. */
+    void put(StoredTransactionOutput out) throws BlockStoreException {
+        long location = append(out);
+        setKey(out.getHash(), out.getIndex());
+        update(location, inBatch);
+    }
+
+    /** Removes the given outpoint, returning false if it wasn't there. */
+    boolean remove(Sha256Hash hash, long index) throws BlockStoreException {
+        setKey(hash, index);
+        if (find() < 0)
+            return false;
+        update(EMPTY, inBatch);
+        if (!inBatch)
+            maybeCompact();
+        return true;
+    }
+
+    /** Starts logging changes. Starting again before the batch is committed or aborted just carries on with it. */
+    void beginBatch() {
+        inBatch = true;
+    }
+
+    void commitBatch() throws BlockStoreException {
+        if (!inBatch)
+            return;
+        log.clear();
+        inBatch = false;
+        maybeCompact();
+    }
+
+    void abortBatch() throws BlockStoreException {
+        if (!inBatch)
+            return;
+        inBatch = false;
+        // Undo the changes newest first, so that an outpoint changed several times ends up as it started.
+        for (int position = log.position() - SLOT_SIZE; position >= 0; position -= SLOT_SIZE) {
+            k0 = log.getLong(position);
+            k1 = log.getLong(position + 8);
+            k2 = log.getLong(position + 16);
+            k3 = log.getLong(position + 24);
+            kIndex = log.getInt(position + INDEX_OFFSET);
+            update(log.getLong(position + LOCATION_OFFSET), false);
+        }
+        log.clear();
+    }
+
+    /** Lets go of the memory and files used by the table. It can't be used afterwards. */
+    void close() {
+        slots = null;
+        data = null;
+        current = null;
+        log = null;
+    }
+
+    private void setKey(Sha256Hash hash, long index) {
+        byte[] bytes = hash.getBytes();
+        k0 = readLong(bytes, 0);
+        k1 = readLong(bytes, 8);
+        k2 = readLong(bytes, 16);
+        k3 = readLong(bytes, 24);
+        kIndex = (int) index;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFFL);
+        return result;
+    }
+
+    private static int hash(long k0, long k3, int index) {
+        long h = (k0 ^ k3) + index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** Returns the slot holding the current key, or -(slot + 1) for the slot it should be put in. */
+    private int find() {
+        int mask = capacity - 1;
+        int slot = hash(k0, k3, kIndex) & mask;
+        int insertAt = -1;
+        while (true) {
+            ByteBuffer segment = slots[slot >>> slotsPerSegmentBits];
+            int offset = slotOffset(slot);
+            long location = segment.getLong(offset + LOCATION_OFFSET);
+            if (location == EMPTY)
+                return -((insertAt >= 0 ? insertAt : slot) + 1);
+            if (location == DELETED) {
+                if (insertAt < 0)
+                    insertAt = slot;
+            } else if (segment.getLong(offset) == k0 && segment.getLong(offset + 8) == k1 &&
+                    segment.getLong(offset + 16) == k2 && segment.getLong(offset + 24) == k3 &&
+                    segment.getInt(offset + INDEX_OFFSET) == kIndex) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int slotOffset(int slot) {
+        return (slot & ((1 << slotsPerSegmentBits) - 1)) * SLOT_SIZE;
+    }
+
+    private long locationAt(int slot) {
+        return slots[slot >>> slotsPerSegmentBits].getLong(slotOffset(slot) + LOCATION_OFFSET);
+    }
+
+    private void setLocationAt(int slot, long location) {
+        slots[slot >>> slotsPerSegmentBits].putLong(slotOffset(slot) + LOCATION_OFFSET, location);
+    }
+
+    /** Points the current key at the given location, EMPTY meaning it is removed, optionally logging the change. */
+    private void update(long location, boolean logged) throws BlockStoreException {
+        if (location != EMPTY && (size + deleted + 1) * 4L > capacity * 3L)
+            rehash(size * 2L >= capacity ? capacity * 2 : capacity);
+        int slot = find();
+        long previous = slot >= 0 ? locationAt(slot) : EMPTY;
+        if (previous == EMPTY && location == EMPTY)
+            return;
+        if (logged)
+            log(previous);
+        if (slot >= 0) {
+            liveBytes -= recordSize(previous);
+            if (location == EMPTY) {
+                setLocationAt(slot, DELETED);
+                size--;
+                deleted++;
+            } else {
+                setLocationAt(slot, location);
+            }
+        } else {
+            slot = -slot - 1;
+            if (locationAt(slot) == DELETED)
+                deleted--;
+            ByteBuffer segment = slots[slot >>> slotsPerSegmentBits];
+            int offset = slotOffset(slot);
+            segment.putLong(offset, k0);
+            segment.putLong(offset + 8, k1);
+            segment.putLong(offset + 16, k2);
+            segment.putLong(offset + 24, k3);
+            segment.putInt(offset + INDEX_OFFSET, kIndex);
+            segment.putLong(offset + LOCATION_OFFSET, location);
+            size++;
+        }
+        if (location != EMPTY)
+            liveBytes += recordSize(location);
+    }
+
+    private void log(long previous) {
+        if (log.remaining() < SLOT_SIZE) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(log.capacity() * 2);
+            log.flip();
+            bigger.put(log);
+            log = bigger;
+        }
+        log.putLong(k0).putLong(k1).putLong(k2).putLong(k3).putInt(kIndex).putInt(0).putLong(previous);
+    }
+
+    private ByteBuffer[] allocateSlots(int capacity) throws BlockStoreException {
+        int bits = Math.min(Integer.numberOfTrailingZeros(capacity), MAX_SLOTS_PER_SEGMENT_BITS);
+        ByteBuffer[] segments = new ByteBuffer[capacity >>> bits];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = allocate(SLOT_SIZE << bits);
+        this.capacity = capacity;
+        this.slotsPerSegmentBits = bits;
+        return segments;
+    }
+
+    // Moves everything into a table of the given capacity, which also gets rid of the deleted slots.
+    private void rehash(int newCapacity) throws BlockStoreException {
+        checkState(newCapacity > 0, "Too many outputs");
+        ByteBuffer[] oldSlots = slots;
+        int oldCapacity = capacity, oldBits = slotsPerSegmentBits;
+        slots = allocateSlots(newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            ByteBuffer from = oldSlots[i >>> oldBits];
+            int fromOffset = (i & ((1 << oldBits) - 1)) * SLOT_SIZE;
+            long location = from.getLong(fromOffset + LOCATION_OFFSET);
+            if (location == EMPTY || location == DELETED)
+                continue;
+            int slot = hash(from.getLong(fromOffset), from.getLong(fromOffset + 24),
+                    from.getInt(fromOffset + INDEX_OFFSET)) & mask;
+            while (locationAt(slot) != EMPTY)
+                slot = (slot + 1) & mask;
+            ByteBuffer to = slots[slot >>> slotsPerSegmentBits];
+            int toOffset = slotOffset(slot);
+            for (int j = 0; j < SLOT_SIZE; j += 8)
+                to.putLong(toOffset + j, from.getLong(fromOffset + j));
+        }
+        deleted = 0;
+    }
+
+    private long append(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] scriptBytes = out.getScriptBytes();
+        int length = RECORD_HEADER_SIZE + scriptBytes.length;
+        ByteBuffer segment = segmentWithRoomFor(length);
+        long location = ((long) data.size() << 32) | segment.position();
+        segment.putLong(out.getValue().longValue()).putInt(out.getHeight()).putInt(scriptBytes.length).put(scriptBytes);
+        totalBytes += length;
+        return location;
+    }
+
+    private ByteBuffer segmentWithRoomFor(int length) throws BlockStoreException {
+        if (current == null || current.remaining() < length) {
+            int size = current == null ? FIRST_DATA_SEGMENT_SIZE : Math.min(current.capacity() * 2, MAX_DATA_SEGMENT_SIZE);
+            current = allocate(Math.max(size, length));
+            data.add(current);
+        }
+        return current;
+    }
+
+    private int recordSize(long location) {
+        return RECORD_HEADER_SIZE + data.get((int) (location >>> 32) - 1).getInt((int) location + 12);
+    }
+
+    // Copies the live records into a new data area once the old one is mostly garbage.
+    private void maybeCompact() throws BlockStoreException {
+        long garbage = totalBytes - liveBytes;
+        if (inBatch || garbage < MIN_COMPACTION_BYTES || garbage < liveBytes)
+            return;
+        List<ByteBuffer> oldData = data;
+        data = new ArrayList<ByteBuffer>();
+        current = null;
+        totalBytes = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long location = locationAt(slot);
+            if (location == EMPTY || location == DELETED)
+                continue;
+            ByteBuffer record = oldData.get((int) (location >>> 32) - 1).duplicate();
+            record.position((int) location);
+            int length = RECORD_HEADER_SIZE + record.getInt((int) location + 12);
+            record.limit((int) location + length);
+            ByteBuffer segment = segmentWithRoomFor(length);
+            setLocationAt(slot, ((long) data.size() << 32) | segment.position());
+            segment.put(record);
+            totalBytes += length;
+        }
+    }
+
+    private ByteBuffer allocate(int size) throws BlockStoreException {
+        if (directory == null)
+            return ByteBuffer.allocateDirect(size);
+        try {
+            File file = File.createTempFile("outputs", ".tmp", directory);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                // The mapping stays valid without the file, which then goes away with the buffer. If the operating
+                // system won't delete a mapped file, leave it until exit.
+                if (!file.delete())
+                    file.deleteOnExit();
+                return buffer;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
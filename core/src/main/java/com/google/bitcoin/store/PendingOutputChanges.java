@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>The unspent outputs a SQL store has been asked to create and delete during a batch write but hasn't sent to the
+ * database yet, so that they can go in a few JDBC batches instead of a statement each. Lookups have to be answered from
+ * here before the database is asked.</p>
+ *
+ * <p>An output created and deleted again in the same batch, as when a transaction spends one earlier in its block,
+ * never needs to reach the database at all, though the delete is still sent in case a row with the same outpoint was
+ * there already. Such deletes are allowed to find nothing, while others must delete a row.</p>
+ *
+ * <p>Each connection has its own, so it isn't thread safe.</p>
+ */
+class PendingOutputChanges {
+    /** Outputs to insert once the deletes are done. */
+    final Map<StoredTransactionOutPoint, StoredTransactionOutput> creates =
+            new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+    /** Outpoints to delete, mapped to whether a row must be deleted. */
+    final Map<StoredTransactionOutPoint, Boolean> deletes = new LinkedHashMap<StoredTransactionOutPoint, Boolean>();
+
+    void add(StoredTransactionOutput out) {
+        creates.put(new StoredTransactionOutPoint(out), out);
+    }
+
+    void remove(StoredTransactionOutput out, String storeName) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (creates.remove(key) != null) {
+            if (!deletes.containsKey(key))
+                deletes.put(key, false);
+        } else if (deletes.containsKey(key)) {
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from " + storeName + " that it didn't have!");
+        } else {
+            deletes.put(key, true);
+        }
+    }
+
+    /** Returns an output created in this batch, or null if it wasn't. */
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        return creates.get(new StoredTransactionOutPoint(hash, index));
+    }
+
+    /** Returns true if the given outpoint was deleted in this batch and not created again, so the database is stale. */
+    boolean isDeleted(Sha256Hash hash, long index) {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        return deletes.containsKey(key) && !creates.containsKey(key);
+    }
+
+    int size() {
+        return creates.size() + deletes.size();
+    }
+
+    void clear() {
+        creates.clear();
+        deletes.clear();
+    }
+}
@@ -18,6 +18,7 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.script.Script;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +47,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    // The statements prepared on each connection, see prepare().
+    private ThreadLocal<Map<String, PreparedStatement>> statements;
+    // Changes to unspent outputs made in a batch write which haven't been sent to the database yet.
+    private ThreadLocal<PendingOutputChanges> pendingOutputs;
     private String connectionURL;
     private int fullStoreDepth;
     private String username;
@@ -87,6 +92,18 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
+    private static final String SELECT_OUTPUT = "SELECT height, value, scriptBytes FROM openOutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OUTPUT_INDEXES = "SELECT index FROM openOutputs WHERE hash = ?";
+    private static final String INSERT_OUTPUT = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String DELETE_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    // How many transactions getTransactionOutputs asks for the outputs of in one query.
+    private static final int OUTPUT_QUERY_SIZE = 100;
+    private static final String SELECT_OUTPUTS = "SELECT hash, index, height, value, scriptBytes FROM openOutputs WHERE hash IN (" +
+            Joiner.on(", ").join(Collections.nCopies(OUTPUT_QUERY_SIZE, "?")) + ")";
+    // How many changes to unspent outputs a batch write buffers before sending them to the database.
+    private static final int MAX_PENDING_OUTPUT_CHANGES = 10000;
+
     // Some indexes to speed up inserts
     private static final String CREATE_HEADERS_HASH_INDEX = "CREATE INDEX headershashindex ON headers USING btree (hash);";
     private static final String CREATE_OUTPUTS_ADDRESS_INDEX = "CREATE INDEX idx_address ON openoutputs USING btree (hash, index, height, toaddress);";
@@ -168,6 +185,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<Map<String, PreparedStatement>>();
+        pendingOutputs = new ThreadLocal<PendingOutputChanges>();
 
         try {
             Class.forName(driver);
@@ -215,6 +234,30 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Statements used for every block are prepared once per connection rather than each time.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> prepared = statements.get();
+        if (prepared == null) {
+            prepared = new HashMap<String, PreparedStatement>();
+            statements.set(prepared);
+        }
+        PreparedStatement s = prepared.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            prepared.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closeStatements() throws SQLException {
+        Map<String, PreparedStatement> prepared = statements.get();
+        if (prepared == null)
+            return;
+        statements.remove();
+        for (PreparedStatement s : prepared.values())
+            s.close();
+    }
+
     public synchronized void close() {
         for (Connection conn : allConnections) {
             try {
@@ -231,6 +274,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     public void resetStore() throws BlockStoreException {
         maybeConnect();
         try {
+            closeStatements();
             Statement s = conn.get().createStatement();
             s.execute("DROP TABLE settings");
             s.execute("DROP TABLE headers");
@@ -558,29 +602,31 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
+
+                if (wasUndoableOnly && !results.getBoolean(4))
+                    return null;
+
+                BigInteger chainWork = new BigInteger(results.getBytes(1));
+                int height = results.getInt(2);
+                Block b = new Block(params, results.getBytes(3));
+                b.verifyHeader();
+                StoredBlock stored = new StoredBlock(b, chainWork, height);
+                return stored;
+            } finally {
+                results.close();
             }
-            // Parse it.
-
-            if (wasUndoableOnly && !results.getBoolean(4))
-                return null;
-
-            BigInteger chainWork = new BigInteger(results.getBytes(1));
-            int height = results.getInt(2);
-            Block b = new Block(params, results.getBytes(3));
-            b.verifyHeader();
-            StoredBlock stored = new StoredBlock(b, chainWork, height);
-            return stored;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (ProtocolException e) {
@@ -590,11 +636,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -676,12 +717,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -697,12 +736,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -730,38 +767,96 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutput out = pending.get(hash, index);
+            if (out != null || pending.isDeleted(hash, index))
+                return out;
+        }
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                            "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OUTPUT);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                return null;
+            try {
+                if (!results.next()) {
+                    return null;
+                }
+                // Parse it.
+                int height = results.getInt(1);
+                BigInteger value = new BigInteger(results.getBytes(2));
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            } finally {
+                results.close();
             }
-            // Parse it.
-            int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
-            return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
-    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outpoints) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outpoints.size());
+        // Answer what we can from the batch being written and gather up the transactions to ask the database about.
+        Set<Sha256Hash> hashes = new LinkedHashSet<Sha256Hash>();
+        for (TransactionOutPoint outpoint : outpoints) {
+            StoredTransactionOutput out = pending == null ? null : pending.get(outpoint.getHash(), outpoint.getIndex());
+            if (out == null && (pending == null || !pending.isDeleted(outpoint.getHash(), outpoint.getIndex())))
+                hashes.add(outpoint.getHash());
+            outputs.add(out);
+        }
+        if (hashes.isEmpty())
+            return outputs;
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> found = selectOutputs(hashes);
+        for (int i = 0; i < outpoints.size(); i++) {
+            TransactionOutPoint outpoint = outpoints.get(i);
+            if (outputs.get(i) == null && (pending == null || !pending.isDeleted(outpoint.getHash(), outpoint.getIndex())))
+                outputs.set(i, found.get(new StoredTransactionOutPoint(outpoint.getHash(), outpoint.getIndex())));
+        }
+        return outputs;
+    }
 
+    // Fetches all the unspent outputs of the given transactions, OUTPUT_QUERY_SIZE transactions to a query.
+    private Map<StoredTransactionOutPoint, StoredTransactionOutput> selectOutputs(Collection<Sha256Hash> hashes)
+            throws BlockStoreException {
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> found =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        try {
+            PreparedStatement s = prepare(SELECT_OUTPUTS);
+            Iterator<Sha256Hash> it = hashes.iterator();
+            while (it.hasNext()) {
+                // The last query is padded out by repeating a hash, so that the one statement does for all of them.
+                byte[] hashBytes = null;
+                for (int i = 1; i <= OUTPUT_QUERY_SIZE; i++) {
+                    if (it.hasNext())
+                        hashBytes = it.next().getBytes();
+                    s.setBytes(i, hashBytes);
+                }
+                ResultSet results = s.executeQuery();
+                try {
+                    while (results.next()) {
+                        Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                        // index is actually an unsigned int
+                        long index = results.getInt(2) & 0xFFFFFFFFL;
+                        BigInteger value = new BigInteger(results.getBytes(4));
+                        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                        found.put(new StoredTransactionOutPoint(hash, index),
+                                new StoredTransactionOutput(hash, index, value, results.getInt(3), true, results.getBytes(5)));
+                    }
+                } finally {
+                    results.close();
+                }
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+        return found;
+    }
+
+    private void setOutputParameters(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
         // Calculate the toAddress (if any)
         String dbAddress = "";
         int type = 0;
@@ -801,48 +896,91 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             }
         }
 
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+        s.setString(6, dbAddress);
+        s.setInt(7, type);
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        maybeConnect();
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            if (pending.size() >= MAX_PENDING_OUTPUT_CHANGES)
+                flushOutputChanges(pending);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
+            PreparedStatement s = prepare(INSERT_OUTPUT);
+            setOutputParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.remove(out, "PostgresFullPrunedBlockStore");
+            if (pending.size() >= MAX_PENDING_OUTPUT_CHANGES)
+                flushOutputChanges(pending);
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OUTPUT);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            if (s.executeUpdate() == 0)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Sends the changes buffered in a batch write to the database, deletes first as an outpoint may have been deleted
+    // and then created again.
+    private void flushOutputChanges(PendingOutputChanges pending) throws BlockStoreException {
+        try {
+            if (!pending.deletes.isEmpty()) {
+                PreparedStatement s = prepare(DELETE_OUTPUT);
+                for (StoredTransactionOutPoint outpoint : pending.deletes.keySet()) {
+                    s.setBytes(1, outpoint.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int)outpoint.getIndex());
+                    s.addBatch();
+                }
+                int[] updateCounts = s.executeBatch();
+                int i = 0;
+                for (boolean mustExist : pending.deletes.values()) {
+                    if (mustExist && updateCounts[i] == 0)
+                        throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+                    i++;
+                }
+            }
+            if (!pending.creates.isEmpty()) {
+                PreparedStatement s = prepare(INSERT_OUTPUT);
+                for (StoredTransactionOutput out : pending.creates.values()) {
+                    setOutputParameters(s, out);
+                    s.addBatch();
+                }
+                s.executeBatch();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            pending.clear();
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
 
         maybeConnect();
@@ -855,6 +993,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new PendingOutputChanges());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
@@ -863,7 +1003,16 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
 
-
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            pendingOutputs.remove();
+            try {
+                flushOutputChanges(pending);
+            } catch (BlockStoreException e) {
+                abortDatabaseBatchWrite();
+                throw e;
+            }
+        }
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
@@ -878,6 +1027,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
 
+        pendingOutputs.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -892,24 +1042,26 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null) {
+            for (int i = 0; i < numOutputs; i++)
+                if (pending.get(hash, i) != null)
+                    return true;
+        }
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_OUTPUT_INDEXES);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            try {
+                while (results.next())
+                    if (pending == null || !pending.isDeleted(hash, results.getInt(1) & 0xFFFFFFFFL))
+                        return true;
+                return false;
+            } finally {
+                results.close();
             }
-            int count = results.getInt(1);
-            return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -922,6 +1074,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        // Outputs changed in a batch write have to be in the database to be counted.
+        PendingOutputChanges pending = pendingOutputs.get();
+        if (pending != null)
+            flushOutputChanges(pending);
         PreparedStatement s = null;
 
 
@@ -18,6 +18,7 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.Threading;
+import com.hashengineering.crypto.X11;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +55,17 @@ public class SPVBlockStore implements BlockStore {
     protected int numHeaders;
     protected NetworkParameters params;
 
+    // An open addressing (linear probing) hash table from block hash to the ring slot the block is stored in, so a
+    // cache miss doesn't have to scan the whole ring. Only the hash code of each block hash is kept in memory, the
+    // candidate record's full hash is compared against the mapped file. Null when the store was opened without one.
+    // Guarded by lock.
+    @Nullable protected int[] indexKeys;
+    @Nullable protected int[] indexSlots;  // Ring slot number plus one, or zero for an empty entry.
+    protected int indexMask;
+    private final byte[] indexScratch = new byte[32], indexFindScratch = new byte[32];
+
+    private volatile boolean verifyStoredHashes;
+
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
@@ -87,14 +99,37 @@ public class SPVBlockStore implements BlockStore {
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store that holds {@link #DEFAULT_NUM_HEADERS} headers and is indexed by
+     * block hash. Will create the given file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS, true);
+    }
+
+    /**
+     * Creates and initializes an SPV block store holding up to numHeaders headers. Will create the given file if it's
+     * missing, an existing file must have been created with the same number of headers. This operation will block
+     * on disk.
+     *
+     * @param useIndex if true, an in memory hash index over the ring is built when the store is opened and kept up to
+     *                 date as blocks are added, so lookups take constant time however large the ring is. Otherwise a
+     *                 lookup that misses the caches scans the ring backwards from the most recent block.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders, boolean useIndex)
+            throws BlockStoreException {
         checkNotNull(file);
         this.params = checkNotNull(params);
+        checkArgument(numHeaders > 0 && numHeaders <= (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / RECORD_SIZE,
+                "Unsupported number of headers: %s", numHeaders);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = numHeaders;
+            if (useIndex) {
+                // At least twice as many entries as headers, keeping the load factor at or below a half.
+                int capacity = Integer.highestOneBit(Math.max(numHeaders, 2) * 2 - 1) << 1;
+                indexKeys = new int[capacity];
+                indexSlots = new int[capacity];
+                indexMask = capacity - 1;
+            }
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -126,6 +161,8 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (indexSlots != null)
+                    rebuildIndex();
             } else {
                 initNewStore(params);
             }
@@ -172,8 +209,15 @@ public class SPVBlockStore implements BlockStore {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
+            if (indexSlots != null) {
+                // Forget about the block we're about to overwrite, if any.
+                int slot = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+                if (readRecordHash(slot))
+                    indexRemove(indexScratch, slot);
+                indexPut(hash.getBytes(), slot);
+            }
+            buffer.position(cursor);
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
@@ -195,37 +239,160 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            StoredBlock storedBlock = indexSlots != null ? getFromIndex(hash) : getByScanning(hash);
+            if (storedBlock != null)
+                blockCache.put(hash, storedBlock);
+            else
+                notFoundCache.put(hash, notFoundMarker);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
+    @Nullable
+    private StoredBlock getFromIndex(Sha256Hash hash) throws ProtocolException {
+        int pos = indexFind(hash.getBytes());
+        if (pos < 0)
+            return null;
+        buffer.position(FILE_PROLOGUE_BYTES + (indexSlots[pos] - 1) * RECORD_SIZE + 32);
+        return readRecord(hash);
+    }
+
+    @Nullable
+    private StoredBlock getByScanning(Sha256Hash hash) throws ProtocolException {
+        // Starting from the current tip of the ring work backwards until we have either found the block or
+        // wrapped around.
+        int cursor = getRingCursor(buffer);
+        final int startingPoint = cursor;
+        final int fileSize = getFileSize();
+        final byte[] targetHashBytes = hash.getBytes();
+        byte[] scratch = new byte[32];
+        do {
+            cursor -= RECORD_SIZE;
+            if (cursor < FILE_PROLOGUE_BYTES) {
+                // We hit the start, so wrap around.
+                cursor = fileSize - RECORD_SIZE;
+            }
+            // Cursor is now at the start of the next record to check, so read the hash and compare it.
+            buffer.position(cursor);
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, targetHashBytes)) {
+                // Found the target.
+                return readRecord(hash);
+            }
+        } while (cursor != startingPoint);
+        return null;
+    }
+
+    /** Reads the record at the buffer's position, which is just after the given hash. */
+    private StoredBlock readRecord(Sha256Hash hash) throws ProtocolException {
+        if (verifyStoredHashes) {
+            final byte[] header = new byte[Block.HEADER_SIZE];
+            final int position = buffer.position();
+            buffer.position(position + StoredBlock.CHAIN_WORK_BYTES + 4);
+            buffer.get(header);
+            buffer.position(position);
+            final byte[] expected = hash.getBytes();
+            Threading.CPU_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] actual = Utils.reverseBytes(X11.x11Digest(header));
+                    if (!Arrays.equals(actual, expected)) {
+                        log.error("Corrupted block store: header stored under {} actually hashes to {}",
+                                Utils.bytesToHexString(expected), Utils.bytesToHexString(actual));
+                        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                        if (handler != null)
+                            handler.uncaughtException(Thread.currentThread(),
+                                    new BlockStoreException("Stored hash does not match header"));
+                    }
+                }
+            });
+        }
+        // The stored hash is trusted so the header doesn't have to be hashed again.
+        return StoredBlock.deserializeCompact(params, buffer, hash);
+    }
+
+    /**
+     * Headers read back from the file are given the hash stored next to them rather than being hashed again. If this
+     * is set, each one is still hashed, but on {@link Threading#CPU_POOL} rather than in the calling thread, and a
+     * mismatch is logged and reported to {@link Threading#uncaughtExceptionHandler}. Off by default.
+     */
+    public void setVerifyStoredHashes(boolean verifyStoredHashes) {
+        this.verifyStoredHashes = verifyStoredHashes;
+    }
+
+    /** Rebuilds the index from the ring, oldest record first so that if a block was stored twice the latest wins. */
+    private void rebuildIndex() {
+        lock.lock();
+        try {
+            int oldest = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            for (int i = 0; i < numHeaders; i++) {
+                int slot = (oldest + i) % numHeaders;
+                if (readRecordHash(slot))
+                    indexPut(indexScratch, slot);
+            }
+        } finally { lock.unlock(); }
+    }
+
+    /** Reads the hash of the record in the given slot into indexScratch, returning false if the slot is unused. */
+    private boolean readRecordHash(int slot) {
+        buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+        buffer.get(indexScratch);
+        for (byte b : indexScratch)
+            if (b != 0)
+                return true;
+        return false;
+    }
+
+    // Block hashes are uniformly distributed so the hash code (the last four bytes) makes a fine index key as is.
+    private static int indexKey(byte[] hash) {
+        return (hash[31] & 0xFF) | ((hash[30] & 0xFF) << 8) | ((hash[29] & 0xFF) << 16) | ((hash[28] & 0xFF) << 24);
+    }
+
+    /** Returns the position in the index of the entry for the given hash, or -1 if there isn't one. */
+    private int indexFind(byte[] hash) {
+        final int key = indexKey(hash);
+        for (int pos = key & indexMask; indexSlots[pos] != 0; pos = (pos + 1) & indexMask) {
+            if (indexKeys[pos] != key)
+                continue;
+            buffer.position(FILE_PROLOGUE_BYTES + (indexSlots[pos] - 1) * RECORD_SIZE);
+            buffer.get(indexFindScratch);
+            if (Arrays.equals(indexFindScratch, hash))
+                return pos;
+        }
+        return -1;
+    }
+
+    private void indexPut(byte[] hash, int slot) {
+        int pos = indexFind(hash);
+        if (pos < 0) {
+            final int key = indexKey(hash);
+            pos = key & indexMask;
+            while (indexSlots[pos] != 0)
+                pos = (pos + 1) & indexMask;
+            indexKeys[pos] = key;
+        }
+        indexSlots[pos] = slot + 1;
+    }
+
+    /** Removes the entry for the given hash, but only if it still points at the given slot. */
+    private void indexRemove(byte[] hash, int slot) {
+        int hole = indexFind(hash);
+        if (hole < 0 || indexSlots[hole] != slot + 1)
+            return;
+        // Shift later entries of the same probe run back into the hole, so lookups never stop short at it.
+        for (int next = (hole + 1) & indexMask; indexSlots[next] != 0; next = (next + 1) & indexMask) {
+            int home = indexKeys[next] & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                indexKeys[hole] = indexKeys[next];
+                indexSlots[hole] = indexSlots[next];
+                hole = next;
+            }
+        }
+        indexSlots[hole] = 0;
+    }
+
     protected StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
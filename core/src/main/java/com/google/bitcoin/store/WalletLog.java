@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Reads and writes the log of changes that {@link com.google.bitcoin.core.Wallet#saveChangesToFile(File, File)}
+ * keeps beside a wallet file. Each record in the log is a {@link Protos.Wallet} holding only the keys, watched scripts,
+ * transactions and extensions that were added or changed since the record before it, along with all the other fields
+ * of the wallet as they were when it was written. Reading the wallet replays the records over the file in order: a
+ * record's transactions replace those with the same hash and its extensions those with the same ID.</p>
+ *
+ * <p>A log belongs to one snapshot of the wallet, which is marked with a generation number that the name of the log
+ * and each of its records carry as well, so that a log left behind by an older snapshot is never replayed over a newer
+ * one. Records are written length prefixed, and replaying stops quietly at one that was cut short, as happens if the
+ * process dies while appending it.</p>
+ *
+ * <p>The depth and work done of a building transaction are only as of when its record was written, so replaying moves
+ * them on by the blocks the wallet saw afterwards, estimating the work of those blocks from the average work of the
+ * blocks the transaction was already buried under.</p>
+ */
+public class WalletLog {
+    private static final Logger log = LoggerFactory.getLogger(WalletLog.class);
+
+    /** ID of the extension that marks snapshots and records with the generation of their log. */
+    public static final String GENERATION_EXTENSION_ID = "com.google.bitcoin.store.WalletLog";
+
+    /** Returns the file the log of the given generation of a wallet file is kept in. */
+    public static File getLogFile(File walletFile, long generation) {
+        return new File(walletFile.getAbsoluteFile().getParentFile(),
+                walletFile.getName() + "." + Long.toHexString(generation) + ".log");
+    }
+
+    /** Returns the given wallet or record marked with the given generation. */
+    public static Protos.Wallet setGeneration(Protos.Wallet walletProto, long generation) {
+        Protos.Extension extension = Protos.Extension.newBuilder()
+                .setId(GENERATION_EXTENSION_ID)
+                .setMandatory(false)
+                .setData(ByteString.copyFrom(ByteBuffer.allocate(8).putLong(generation).array()))
+                .build();
+        return walletProto.toBuilder().addExtension(extension).build();
+    }
+
+    /** Returns the generation the given wallet or record is marked with, or null if it isn't part of a log. */
+    @Nullable
+    public static Long getGeneration(Protos.Wallet walletProto) {
+        for (Protos.Extension extension : walletProto.getExtensionList()) {
+            if (extension.getId().equals(GENERATION_EXTENSION_ID) && extension.getData().size() == 8)
+                return extension.getData().asReadOnlyByteBuffer().getLong();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the given wallet file and replays its log over it, if it has one. This is what you want instead of
+     * {@link WalletProtobufSerializer#parseToProto(java.io.InputStream)} for a file that changes are saved to.
+     */
+    public static Protos.Wallet readWallet(File walletFile) throws IOException {
+        Protos.Wallet snapshot;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+        Long generation = getGeneration(snapshot);
+        if (generation == null)
+            return snapshot;
+        File logFile = getLogFile(walletFile, generation);
+        if (!logFile.exists())
+            return replay(snapshot, null);
+        stream = new BufferedInputStream(new FileInputStream(logFile));
+        try {
+            return replay(snapshot, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns the given snapshot with the records read from the given log, if any, replayed over it. Records of other
+     * generations than the snapshot's are skipped.
+     */
+    public static Protos.Wallet replay(Protos.Wallet snapshot, @Nullable InputStream input) throws IOException {
+        Long generation = getGeneration(snapshot);
+        Map<ByteString, Protos.Key> keys = new LinkedHashMap<ByteString, Protos.Key>();
+        Map<ByteString, Protos.Script> scripts = new LinkedHashMap<ByteString, Protos.Script>();
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<ByteString, Protos.Transaction>();
+        // The height of the wallet when each transaction's record was written.
+        Map<ByteString, Integer> heights = new HashMap<ByteString, Integer>();
+        Map<String, Protos.Extension> extensions = new LinkedHashMap<String, Protos.Extension>();
+        Protos.Wallet last = snapshot;
+        add(snapshot, keys, scripts, transactions, heights, extensions);
+        int records = 0;
+        while (input != null) {
+            Protos.Wallet record;
+            try {
+                record = Protos.Wallet.parseDelimitedFrom(input);
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Stopped replaying wallet log at a record that was cut short: {}", e.getMessage());
+                break;
+            }
+            if (record == null)
+                break;
+            Long recordGeneration = getGeneration(record);
+            if (generation == null || !generation.equals(recordGeneration)) {
+                log.warn("Skipped a wallet log record of generation {} over a snapshot of generation {}",
+                        recordGeneration, generation);
+                continue;
+            }
+            add(record, keys, scripts, transactions, heights, extensions);
+            last = record;
+            records++;
+        }
+        if (records > 0)
+            log.info("Replayed {} wallet log records", records);
+
+        Protos.Wallet.Builder builder = last.toBuilder()
+                .clearKey()
+                .clearWatchedScript()
+                .clearTransaction()
+                .clearExtension()
+                .addAllKey(keys.values())
+                .addAllWatchedScript(scripts.values())
+                .addAllExtension(extensions.values());
+        for (Map.Entry<ByteString, Protos.Transaction> entry : transactions.entrySet()) {
+            Protos.Transaction tx = entry.getValue();
+            Integer height = heights.get(entry.getKey());
+            if (height != null && last.hasLastSeenBlockHeight())
+                tx = moveDepth(tx, last.getLastSeenBlockHeight() - height);
+            builder.addTransaction(tx);
+        }
+        return builder.build();
+    }
+
+    private static void add(Protos.Wallet record, Map<ByteString, Protos.Key> keys,
+                            Map<ByteString, Protos.Script> scripts, Map<ByteString, Protos.Transaction> transactions,
+                            Map<ByteString, Integer> heights, Map<String, Protos.Extension> extensions) {
+        for (Protos.Key key : record.getKeyList()) {
+            ByteString id = key.hasPublicKey() ? key.getPublicKey() : key.toByteString();
+            if (!keys.containsKey(id))
+                keys.put(id, key);
+        }
+        for (Protos.Script script : record.getWatchedScriptList()) {
+            if (!scripts.containsKey(script.getProgram()))
+                scripts.put(script.getProgram(), script);
+        }
+        for (Protos.Transaction tx : record.getTransactionList()) {
+            transactions.put(tx.getHash(), tx);
+            if (record.hasLastSeenBlockHeight())
+                heights.put(tx.getHash(), record.getLastSeenBlockHeight());
+            else
+                heights.remove(tx.getHash());
+        }
+        for (Protos.Extension extension : record.getExtensionList()) {
+            if (!extension.getId().equals(GENERATION_EXTENSION_ID))
+                extensions.put(extension.getId(), extension);
+        }
+    }
+
+    // Returns the transaction buried under the given number of blocks more, if it's building.
+    private static Protos.Transaction moveDepth(Protos.Transaction tx, int blocks) {
+        if (blocks <= 0 || !tx.hasConfidence())
+            return tx;
+        Protos.TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasDepth())
+            return tx;
+        Protos.TransactionConfidence.Builder builder = confidence.toBuilder();
+        int depth = confidence.getDepth();
+        builder.setDepth(depth + blocks);
+        if (confidence.hasWorkDone() && depth > 0) {
+            BigInteger work = BigInteger.valueOf(confidence.getWorkDone());
+            BigInteger moreWork = work.multiply(BigInteger.valueOf(blocks)).divide(BigInteger.valueOf(depth));
+            builder.setWorkDone(work.add(moreWork).longValue());
+        }
+        return tx.toBuilder().setConfidence(builder).build();
+    }
+
+    /** Appends the given record to the given log and syncs it to disk. */
+    public static void append(File logFile, Protos.Wallet record) throws IOException {
+        FileOutputStream stream = new FileOutputStream(logFile, true);
+        try {
+            record.writeDelimitedTo(stream);
+            stream.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Deletes the logs of the given wallet file other than the one of the given generation. */
+    public static void deleteOtherLogs(File walletFile, long generation) {
+        File directory = walletFile.getAbsoluteFile().getParentFile();
+        String keep = getLogFile(walletFile, generation).getName();
+        String prefix = walletFile.getName() + ".";
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(".log") || name.equals(keep))
+                continue;
+            // Leave alone the logs of other wallets whose names start with this one's.
+            if (!name.substring(prefix.length(), name.length() - 4).matches("[0-9a-f]+"))
+                continue;
+            if (!file.delete())
+                log.warn("Failed to delete old wallet log {}", file);
+        }
+    }
+}
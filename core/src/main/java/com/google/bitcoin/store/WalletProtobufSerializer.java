@@ -22,8 +22,11 @@ import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterScrypt;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
 import org.bitcoinj.wallet.Protos;
@@ -31,17 +34,18 @@ import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -66,6 +70,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class WalletProtobufSerializer {
     private static final Logger log = LoggerFactory.getLogger(WalletProtobufSerializer.class);
+    // Keys and transactions are decoded on several threads in chunks of this many.
+    private static final int DECODE_CHUNK_SIZE = 256;
 
     // Used for de-serialization
     protected Map<ByteString, Transaction> txMap;
@@ -112,18 +118,29 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
+        return walletToProto(wallet, wallet.getWalletTransactions(), wallet.getKeys(), wallet.getWatchedScripts(),
+                wallet.getExtensions().values());
+    }
+
+    /**
+     * Like {@link #walletToProto(com.google.bitcoin.core.Wallet)} but only converts the given transactions, keys,
+     * watched scripts and extensions of the wallet, along with all its other fields. This is what the records of a
+     * {@link WalletLog} are made of.
+     */
+    public Protos.Wallet walletToProto(Wallet wallet, Iterable<WalletTransaction> transactions, Iterable<ECKey> keys,
+                                       Iterable<Script> watchedScripts, Iterable<WalletExtension> extensions) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
         walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
         if (wallet.getDescription() != null) {
             walletBuilder.setDescription(wallet.getDescription());
         }
 
-        for (WalletTransaction wtx : wallet.getWalletTransactions()) {
+        for (WalletTransaction wtx : transactions) {
             Protos.Transaction txProto = makeTxProto(wtx);
             walletBuilder.addTransaction(txProto);
         }
 
-        for (ECKey key : wallet.getKeys()) {
+        for (ECKey key : keys) {
             Protos.Key.Builder keyBuilder = Protos.Key.newBuilder().setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
                                                          // .setLabel() TODO
                                                             .setType(Protos.Key.Type.ORIGINAL);
@@ -158,7 +175,7 @@ public class WalletProtobufSerializer {
             walletBuilder.addKey(keyBuilder);
         }
 
-        for (Script script : wallet.getWatchedScripts()) {
+        for (Script script : watchedScripts) {
             Protos.Script protoScript =
                     Protos.Script.newBuilder()
                             .setProgram(ByteString.copyFrom(script.getProgram()))
@@ -199,7 +216,7 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
+        populateExtensions(extensions, walletBuilder);
 
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
@@ -207,8 +224,8 @@ public class WalletProtobufSerializer {
         return walletBuilder.build();
     }
 
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
+    private static void populateExtensions(Iterable<WalletExtension> extensions, Protos.Wallet.Builder walletBuilder) {
+        for (WalletExtension extension : extensions) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
             proto.setId(extension.getWalletExtensionID());
             proto.setMandatory(extension.isWalletExtensionMandatory());
@@ -363,19 +380,31 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(InputStream input) throws UnreadableWalletException {
         try {
+            long start = System.currentTimeMillis();
             Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
-            if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            Wallet wallet = new Wallet(params);
-            readWallet(walletProto, wallet);
-            return wallet;
+            log.info("Parsed wallet in {} ms", System.currentTimeMillis() - start);
+            return readWallet(walletProto);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         }
     }
 
+    /**
+     * Creates a new wallet for the network of the given protocol buffer and loads it. See
+     * {@link #readWallet(java.io.InputStream)} for when a wallet is unreadable.
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(Protos.Wallet walletProto) throws UnreadableWalletException {
+        final String paramsID = walletProto.getNetworkIdentifier();
+        NetworkParameters params = NetworkParameters.fromID(paramsID);
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+        Wallet wallet = new Wallet(params);
+        readWallet(walletProto, wallet);
+        return wallet;
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -399,33 +428,16 @@ public class WalletProtobufSerializer {
         }
 
         // Read all keys
-        for (Protos.Key keyProto : walletProto.getKeyList()) {
-            if (!(keyProto.getType() == Protos.Key.Type.ORIGINAL || keyProto.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES)) {
-                throw new UnreadableWalletException("Unknown key type in wallet, type = " + keyProto.getType());
+        long start = System.currentTimeMillis();
+        final KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        List<ECKey> keys = decodeInParallel(walletProto.getKeyList(), new Decoder<Protos.Key, ECKey>() {
+            @Override
+            public ECKey decode(Protos.Key keyProto) throws UnreadableWalletException {
+                return readKey(keyProto, keyCrypter);
             }
-
-            byte[] privKey = keyProto.hasPrivateKey() ? keyProto.getPrivateKey().toByteArray() : null;
-            EncryptedPrivateKey encryptedPrivateKey = null;
-            if (keyProto.hasEncryptedPrivateKey()) {
-                Protos.EncryptedPrivateKey encryptedPrivateKeyProto = keyProto.getEncryptedPrivateKey();
-                encryptedPrivateKey = new EncryptedPrivateKey(encryptedPrivateKeyProto.getInitialisationVector().toByteArray(),
-                        encryptedPrivateKeyProto.getEncryptedPrivateKey().toByteArray());
-            }
-
-            byte[] pubKey = keyProto.hasPublicKey() ? keyProto.getPublicKey().toByteArray() : null;
-
-            ECKey ecKey;
-            final KeyCrypter keyCrypter = wallet.getKeyCrypter();
-            if (keyCrypter != null && keyCrypter.getUnderstoodEncryptionType() != EncryptionType.UNENCRYPTED) {
-                // If the key is encrypted construct an ECKey using the encrypted private key bytes.
-                ecKey = new ECKey(encryptedPrivateKey, pubKey, keyCrypter);
-            } else {
-                // Construct an unencrypted private key.
-                ecKey = new ECKey(privKey, pubKey);
-            }
-            ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
-            wallet.addKey(ecKey);
-        }
+        });
+        wallet.addKeys(keys);
+        long keysDone = System.currentTimeMillis();
 
         List<Script> scripts = Lists.newArrayList();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -442,15 +454,27 @@ public class WalletProtobufSerializer {
         wallet.addWatchedScripts(scripts);
 
         // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
+        final NetworkParameters params = wallet.getParams();
+        List<Transaction> txns = decodeInParallel(walletProto.getTransactionList(),
+                new Decoder<Protos.Transaction, Transaction>() {
+                    @Override
+                    public Transaction decode(Protos.Transaction txProto) {
+                        return readTransaction(txProto, params);
+                    }
+                });
+        for (Transaction tx : txns) {
+            ByteString hash = hashToByteString(tx.getHash());
+            if (txMap.put(hash, tx) != null)
+                throw new UnreadableWalletException("Wallet contained duplicate transaction " + tx.getHash());
         }
+        long txnsDone = System.currentTimeMillis();
 
         // Update transaction outputs to point to inputs that spend them
         for (Protos.Transaction txProto : walletProto.getTransactionList()) {
             WalletTransaction wtx = connectTransactionOutputs(txProto);
             wallet.addWalletTransaction(wtx);
         }
+        long connected = System.currentTimeMillis();
 
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
@@ -476,10 +500,90 @@ public class WalletProtobufSerializer {
             wallet.setVersion(walletProto.getVersion());
         }
 
+        long done = System.currentTimeMillis();
+        log.info("Loaded {} keys in {} ms and {} transactions in {} ms, connected them in {} ms, rest took {} ms",
+                new Object[] { keys.size(), keysDone - start, txns.size(), txnsDone - keysDone, connected - txnsDone,
+                        done - connected });
+
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
     }
 
+    private static ECKey readKey(Protos.Key keyProto, @Nullable KeyCrypter keyCrypter) throws UnreadableWalletException {
+        if (!(keyProto.getType() == Protos.Key.Type.ORIGINAL || keyProto.getType() == Protos.Key.Type.ENCRYPTED_SCRYPT_AES)) {
+            throw new UnreadableWalletException("Unknown key type in wallet, type = " + keyProto.getType());
+        }
+
+        byte[] privKey = keyProto.hasPrivateKey() ? keyProto.getPrivateKey().toByteArray() : null;
+        EncryptedPrivateKey encryptedPrivateKey = null;
+        if (keyProto.hasEncryptedPrivateKey()) {
+            Protos.EncryptedPrivateKey encryptedPrivateKeyProto = keyProto.getEncryptedPrivateKey();
+            encryptedPrivateKey = new EncryptedPrivateKey(encryptedPrivateKeyProto.getInitialisationVector().toByteArray(),
+                    encryptedPrivateKeyProto.getEncryptedPrivateKey().toByteArray());
+        }
+
+        byte[] pubKey = keyProto.hasPublicKey() ? keyProto.getPublicKey().toByteArray() : null;
+
+        ECKey ecKey;
+        if (keyCrypter != null && keyCrypter.getUnderstoodEncryptionType() != EncryptionType.UNENCRYPTED) {
+            // If the key is encrypted construct an ECKey using the encrypted private key bytes.
+            ecKey = new ECKey(encryptedPrivateKey, pubKey, keyCrypter);
+        } else {
+            // Construct an unencrypted private key.
+            ecKey = new ECKey(privKey, pubKey);
+        }
+        ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
+        return ecKey;
+    }
+
+    private interface Decoder<P, T> {
+        T decode(P proto) throws UnreadableWalletException;
+    }
+
+    /**
+     * Decodes the given protos in chunks on the {@link Threading#CPU_POOL}, returning the results in the same order.
+     * The calling thread decodes chunks too, so this finishes even if every thread of the pool is busy or is the caller.
+     */
+    private static <P, T> List<T> decodeInParallel(final List<P> protos, final Decoder<P, T> decoder)
+            throws UnreadableWalletException {
+        final int chunks = (protos.size() + DECODE_CHUNK_SIZE - 1) / DECODE_CHUNK_SIZE;
+        final AtomicReferenceArray<T> results = new AtomicReferenceArray<T>(protos.size());
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(chunks);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                    try {
+                        int end = Math.min(protos.size(), (chunk + 1) * DECODE_CHUNK_SIZE);
+                        for (int i = chunk * DECODE_CHUNK_SIZE; i < end && failure.get() == null; i++)
+                            results.set(i, decoder.decode(protos.get(i)));
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        int helpers = Math.min(chunks, Runtime.getRuntime().availableProcessors()) - 1;
+        for (int i = 0; i < helpers; i++)
+            Threading.CPU_POOL.execute(worker);
+        worker.run();
+        Uninterruptibles.awaitUninterruptibly(done);
+        Exception e = failure.get();
+        if (e instanceof UnreadableWalletException)
+            throw (UnreadableWalletException) e;
+        else if (e != null)
+            throw Throwables.propagate(e);
+        List<T> list = new ArrayList<T>(protos.size());
+        for (int i = 0; i < protos.size(); i++)
+            list.add(results.get(i));
+        return list;
+    }
+
     private void loadExtensions(Wallet wallet, Protos.Wallet walletProto) throws UnreadableWalletException {
         final Map<String, WalletExtension> extensions = wallet.getExtensions();
         for (Protos.Extension extProto : walletProto.getExtensionList()) {
@@ -515,30 +619,34 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
-        Transaction tx = new Transaction(params);
-        if (txProto.hasUpdatedAt()) {
-            tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
-        }
-        
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(txProto.getTransactionOutputCount());
         for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
             BigInteger value = BigInteger.valueOf(outputProto.getValue());
             byte[] scriptBytes = outputProto.getScriptBytes().toByteArray();
-            TransactionOutput output = new TransactionOutput(params, tx, value, scriptBytes);
-            tx.addOutput(output);
+            outputs.add(new TransactionOutput(params, null, value, scriptBytes));
         }
 
+        List<TransactionInput> inputs = new ArrayList<TransactionInput>(txProto.getTransactionInputCount());
         for (Protos.TransactionInput transactionInput : txProto.getTransactionInputList()) {
             byte[] scriptBytes = transactionInput.getScriptBytes().toByteArray();
             TransactionOutPoint outpoint = new TransactionOutPoint(params,
                     transactionInput.getTransactionOutPointIndex() & 0xFFFFFFFFL,
                     byteStringToHash(transactionInput.getTransactionOutPointHash())
             );
-            TransactionInput input = new TransactionInput(params, tx, scriptBytes, outpoint);
+            TransactionInput input = new TransactionInput(params, null, scriptBytes, outpoint);
             if (transactionInput.hasSequence()) {
                 input.setSequenceNumber(transactionInput.getSequence());
             }
-            tx.addInput(input);
+            inputs.add(input);
+        }
+
+        // Trust the stored hash rather than serializing and hashing the transaction again, which is most of the cost
+        // of loading a big wallet.
+        long lockTime = txProto.hasLockTime() ? 0xffffffffL & txProto.getLockTime() : 0;
+        Transaction tx = new Transaction(params, inputs, outputs, lockTime, byteStringToHash(txProto.getHash()));
+        if (txProto.hasUpdatedAt()) {
+            tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
         }
 
         for (int i = 0; i < txProto.getBlockHashCount(); i++) {
@@ -549,10 +657,6 @@ public class WalletProtobufSerializer {
             tx.addBlockAppearance(byteStringToHash(blockHash), relativityOffset);
         }
 
-        if (txProto.hasLockTime()) {
-            tx.setLockTime(0xffffffffL & txProto.getLockTime());
-        }
-
         if (txProto.hasPurpose()) {
             switch (txProto.getPurpose()) {
                 case UNKNOWN: tx.setPurpose(Transaction.Purpose.UNKNOWN); break;
@@ -564,14 +668,7 @@ public class WalletProtobufSerializer {
             // Old wallet: assume a user payment as that's the only reason a new tx would have been created back then.
             tx.setPurpose(Transaction.Purpose.USER_PAYMENT);
         }
-
-        // Transaction should now be complete.
-        Sha256Hash protoHash = byteStringToHash(txProto.getHash());
-        if (!tx.getHash().equals(protoHash))
-            throw new UnreadableWalletException(String.format("Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
@@ -19,16 +19,25 @@ package com.google.bitcoin.utils;
 import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ProtocolException;
-import com.google.bitcoin.core.Utils;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
@@ -37,6 +46,9 @@ import java.util.NoSuchElementException;
  * 
  * <p>In order to comply with Iterator&lt;Block>, this class swallows a lot of IOExceptions, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
+ *
+ * <p>Each file is memory mapped, and the next one is mapped and paged in on {@link Threading#THREAD_POOL} while the
+ * current one is being read.</p>
  * 
  * <p>To blindly import all files which can be found in a reference client (version >= 0.8) datadir automatically,
  * try this code fragment:<br>
@@ -46,6 +58,8 @@ import java.util.NoSuchElementException;
  * }</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
     /**
      * Gets the list of files which contain blocks from the Satoshi client.
      */
@@ -70,14 +84,20 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
-    private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    private final Iterator<File> fileIt;
+    private final NetworkParameters params;
+    // The packet magic as it appears when read from a little endian buffer.
+    private final int magic;
+    // The rest of the file currently being read, or null if the next file should be opened.
+    @Nullable private ByteBuffer currentFile = null;
+    // The file after the current one, being mapped and paged in by a background thread while we read the current one.
+    @Nullable private ListenableFuture<ByteBuffer> prefetchedFile = null;
     private Block nextBlock = null;
-    private NetworkParameters params;
-    
+
     public BlockFileLoader(NetworkParameters params, List<File> files) {
         fileIt = files.iterator();
         this.params = params;
+        this.magic = Integer.reverseBytes((int) params.getPacketMagic());
     }
     
     @Override
@@ -98,71 +118,102 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     
     private void loadNextBlock() {
         while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
-                    break;
-            }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
+            if (currentFile == null) {
+                currentFile = openNextFile();
+                if (currentFile == null) {
                     nextBlock = null;
-                    currentFileStream = null;
                     return;
                 }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
             }
+            ByteBuffer file = currentFile;
+            // Each block is preceded by the packet magic and its size. Skip anything else, eg zero padding.
+            if (!seekPastMagic(file) || file.remaining() < 4) {
+                currentFile = null;
+                continue;
+            }
+            long size = file.getInt() & 0xFFFFFFFFL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > file.remaining()) {
+                // Truncated, eg the reference client was killed while writing it.
+                currentFile = null;
+                continue;
+            }
+            byte[] bytes = new byte[(int) size];
+            file.get(bytes);
             try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+                nextBlock = new Block(params, bytes);
+            } catch (ProtocolException e) {
+                nextBlock = null;
                 continue;
             }
+            break;
+        }
+    }
+
+    /**
+     * Moves the position of the buffer to just after the next occurrence of the packet magic, returning false if there
+     * isn't one. Compares four bytes at a time, only where the first byte matches.
+     */
+    private boolean seekPastMagic(ByteBuffer file) {
+        byte first = (byte) magic;
+        int last = file.limit() - 4;
+        for (int i = file.position(); i <= last; i++) {
+            if (file.get(i) == first && file.getInt(i) == magic) {
+                file.position(i + 4);
+                return true;
+            }
+        }
+        file.position(file.limit());
+        return false;
+    }
+
+    /** Returns the contents of the next file that could be read, or null if there are no more. */
+    @Nullable
+    private ByteBuffer openNextFile() {
+        while (true) {
+            ListenableFuture<ByteBuffer> next = prefetchedFile;
+            prefetchedFile = null;
+            if (next == null) {
+                if (!fileIt.hasNext())
+                    return null;
+                next = Threading.THREAD_POOL.submit(mapFile(fileIt.next()));
+            }
+            // Start on the file after this one while the caller works through this one.
+            if (fileIt.hasNext())
+                prefetchedFile = Threading.THREAD_POOL.submit(mapFile(fileIt.next()));
+            try {
+                return Uninterruptibles.getUninterruptibly(next);
+            } catch (ExecutionException e) {
+                // Unreadable, skip it like any other damage to the files.
+                log.warn("Could not read block file: {}", e.getCause().toString());
+            }
         }
     }
 
+    private static Callable<ByteBuffer> mapFile(final File file) {
+        return new Callable<ByteBuffer>() {
+            @Override
+            public ByteBuffer call() throws IOException {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    long length = raf.length();
+                    if (length > Integer.MAX_VALUE)
+                        throw new IOException("Block file too large to map: " + file);
+                    MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    // Page the file in now, on this thread, rather than one fault at a time while blocks are read.
+                    buffer.load();
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    return buffer;
+                } finally {
+                    // The mapping stays valid after the file is closed.
+                    raf.close();
+                }
+            }
+        };
+    }
+
     @Override
     public void remove() throws UnsupportedOperationException {
         throw new UnsupportedOperationException();
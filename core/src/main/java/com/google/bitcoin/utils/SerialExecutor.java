@@ -0,0 +1,87 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An executor that runs tasks one at a time, in the order they were submitted, on the threads of some other (usually
+ * shared) executor. Many serial executors can share one pool, each keeping its own tasks in order while tasks of
+ * different serial executors run in parallel. The queue is unbounded, so callers that can't trust how many tasks
+ * they'll be given should watch {@link #getQueuedTasks()}.
+ */
+public class SerialExecutor implements Executor {
+    private static final Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Executor executor;
+    @GuardedBy("this") private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    @GuardedBy("this") private boolean running;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (SerialExecutor.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    log.error("Exception in serially executed task", e);
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null)
+                        handler.uncaughtException(Thread.currentThread(), e);
+                }
+            }
+        }
+    };
+
+    public SerialExecutor(Executor executor) {
+        this.executor = checkNotNull(executor);
+    }
+
+    /** Returns how many tasks are waiting to run, not counting one that is running. */
+    public synchronized int getQueuedTasks() {
+        return tasks.size();
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(checkNotNull(task));
+        if (running)
+            return;
+        running = true;
+        try {
+            executor.execute(drain);
+        } catch (RuntimeException e) {
+            // Most likely rejected because the pool was shut down. Nothing will run the queue, so don't keep it.
+            tasks.clear();
+            running = false;
+            throw e;
+        }
+    }
+}
@@ -183,6 +183,22 @@ public class Threading {
     //
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * A fixed size pool of daemon threads, one per available processor, for CPU bound work such as hashing batches of
+     * block headers. Tasks submitted here should never block waiting on other tasks in the same pool.
+     */
+    public static ListeningExecutorService CPU_POOL = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("Threading.CPU_POOL worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            })
+    );
+
     /** A caching thread pool that creates daemon threads, which won't keep the JVM alive waiting for more work. */
     public static ListeningExecutorService THREAD_POOL = MoreExecutors.listeningDecorator(
             Executors.newCachedThreadPool(new ThreadFactory() {
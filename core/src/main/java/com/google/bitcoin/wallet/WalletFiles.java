@@ -48,6 +48,7 @@ public class WalletFiles {
     private final Callable<Void> saver;
 
     private volatile Listener vListener;
+    private volatile boolean vSaveChanges;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -105,10 +106,19 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * If set, saves append the changes made to the wallet since the last save to a log beside the file, and only
+     * write the whole wallet every so often, using {@link Wallet#saveChangesToFile(java.io.File, java.io.File)}. Off
+     * by default, as only readers that know about the log see the changes in it.
+     */
+    public void setSaveChanges(boolean saveChanges) {
+        this.vSaveChanges = saveChanges;
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
-        // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
-        // but they will serialize (using different temp files).
+        // Can be called by any thread. The wallet is only locked whilst it's copied, so we can have two saves in flight
+        // writing to different temp files, but the one that copied the wallet last ends up in place.
         log.info("Saving wallet, last seen block is {}/{}", wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenHash());
         saveNowInternal();
     }
@@ -120,10 +130,14 @@ public class WalletFiles {
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (vSaveChanges)
+            wallet.saveChangesToFile(temp, file);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
-        log.info("Save completed in {}msec", System.currentTimeMillis() - now);
+        log.info("Save completed in {}msec, wallet locked for {}msec", System.currentTimeMillis() - now,
+                wallet.getLastSaveLockMillis());
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
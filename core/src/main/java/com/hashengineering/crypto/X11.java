@@ -1,11 +1,11 @@
 package com.hashengineering.crypto;
 
-import com.google.bitcoin.core.Sha256Hash;
-import com.google.bitcoin.core.Sha512Hash;
 import fr.cryptohash.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Created by Hash Engineering on 4/24/14 for the X11 algorithm
  */
@@ -30,14 +30,72 @@ public class X11 {
         }
     }
 
+    /**
+     * Holds one instance of each of the eleven chained engines plus a scratch buffer for the intermediate 512 bit
+     * results. The engines reset themselves after producing a digest so an instance can be reused indefinitely, but
+     * it is not thread safe, hence one per thread.
+     */
+    private static class Engine {
+        private final Digest[] chain = new Digest[] {
+                new BLAKE512(), new BMW512(), new Groestl512(), new Skein512(), new JH512(), new Keccak512(),
+                new Luffa512(), new CubeHash512(), new SHAvite512(), new SIMD512(), new ECHO512()
+        };
+        private final byte[] scratch = new byte[64];
+
+        void digest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            try {
+                chain[0].update(input, offset, length);
+                chain[0].digest(scratch, 0, 64);
+                for (int i = 1; i < chain.length - 1; i++) {
+                    chain[i].update(scratch, 0, 64);
+                    chain[i].digest(scratch, 0, 64);
+                }
+                Digest last = chain[chain.length - 1];
+                last.update(scratch, 0, 64);
+                // Asking for fewer bytes than the digest length truncates to the first 256 bits.
+                last.digest(output, outputOffset, 32);
+            } catch (RuntimeException e) {
+                // Don't let a half fed engine poison the next hash on this thread.
+                for (Digest d : chain)
+                    d.reset();
+                throw e;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Engine> engine = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
+
+    /**
+     * Calculates the X11 hash of the given range and writes the 32 byte result into output, starting at
+     * outputOffset. When the pure Java implementation is in use this allocates nothing: the digest engines are kept
+     * per thread and reset rather than recreated.
+     */
+    public static void x11Digest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        checkArgument(offset >= 0 && length >= 0 && offset + length <= input.length, "Range out of bounds");
+        checkArgument(outputOffset >= 0 && outputOffset + 32 <= output.length, "Output buffer too small");
+        if (native_library_loaded) {
+            byte[] buf = new byte[length];
+            System.arraycopy(input, offset, buf, 0, length);
+            System.arraycopy(x11_native(buf), 0, output, outputOffset, 32);
+        } else {
+            engine.get().digest(input, offset, length, output, outputOffset);
+        }
+    }
+
     public static byte[] x11Digest(byte[] input, int offset, int length)
     {
-        byte [] buf = new byte[length];
-        for(int i = 0; i < length; ++i)
-        {
-            buf[i] = input[offset + i];
+        byte[] result = new byte[32];
+        try {
+            x11Digest(input, offset, length, result, 0);
+        } catch (Exception e) {
+            return null;
         }
-        return x11Digest(buf);
+        return result;
     }
 
     public static byte[] x11Digest(byte[] input) {
@@ -65,43 +123,8 @@ public class X11 {
 
     static byte [] x11(byte header[])
     {
-        //Initialize
-        Sha512Hash[] hash = new Sha512Hash[11];
-
-        //Run the chain of algorithms
-        BLAKE512 blake512 = new BLAKE512();
-        hash[0] = new Sha512Hash(blake512.digest(header));
-
-        BMW512 bmw = new BMW512();
-        hash[1] = new Sha512Hash(bmw.digest(hash[0].getBytes()));
-
-        Groestl512 groestl = new Groestl512();
-        hash[2] = new Sha512Hash(groestl.digest(hash[1].getBytes()));
-
-        Skein512 skein = new Skein512();
-        hash[3] = new Sha512Hash(skein.digest(hash[2].getBytes()));
-
-        JH512 jh = new JH512();
-        hash[4] = new Sha512Hash(jh.digest(hash[3].getBytes()));
-
-        Keccak512 keccak = new Keccak512();
-        hash[5] = new Sha512Hash(keccak.digest(hash[4].getBytes()));
-
-        Luffa512 luffa = new Luffa512();
-        hash[6] = new Sha512Hash(luffa.digest(hash[5].getBytes()));
-
-        CubeHash512 cubehash = new CubeHash512();
-        hash[7] = new Sha512Hash(cubehash.digest(hash[6].getBytes()));
-
-        SHAvite512 shavite = new SHAvite512();
-        hash[8] = new Sha512Hash(shavite.digest(hash[7].getBytes()));
-
-        SIMD512 simd = new SIMD512();
-        hash[9] = new Sha512Hash(simd.digest(hash[8].getBytes()));
-
-        ECHO512 echo = new ECHO512();
-        hash[10] = new Sha512Hash(echo.digest(hash[9].getBytes()));
-
-        return hash[10].trim256().getBytes();
+        byte[] result = new byte[32];
+        engine.get().digest(header, 0, header.length, result, 0);
+        return result;
     }
 }
@@ -32,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -200,6 +201,109 @@ public abstract class AbstractFullPrunedBlockChainTest
         assertNull(out.get());
     }
     
+    private Transaction spend(TransactionOutPoint outpoint, byte[] scriptPubKey, ECKey key, ECKey signingKey)
+            throws ScriptException {
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), key));
+        t.addSignedInput(outpoint, new Script(scriptPubKey), signingKey);
+        return t;
+    }
+
+    @Test
+    public void addAll() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+
+        // Each block spends an output of the one before, so its scripts are run against outputs that aren't in the
+        // store yet. The third is signed with the wrong key.
+        Block b1 = rollingBlock.createNextBlock(null);
+        Transaction t1 = spend(new TransactionOutPoint(params, 0, coinbase.getHash()),
+                coinbase.getOutput(0).getScriptBytes(), outKey, outKey);
+        b1.addTransaction(t1);
+        b1.solve();
+        Block b2 = b1.createNextBlock(null);
+        Transaction t2 = spend(new TransactionOutPoint(params, 0, t1.getHash()), t1.getOutput(0).getScriptBytes(),
+                outKey, outKey);
+        b2.addTransaction(t2);
+        b2.solve();
+        Block b3 = b2.createNextBlock(null);
+        b3.addTransaction(spend(new TransactionOutPoint(params, 0, t2.getHash()), t2.getOutput(0).getScriptBytes(),
+                outKey, new ECKey()));
+        b3.solve();
+        Block b4 = b3.createNextBlock(null);
+        try {
+            chain.addAll(Arrays.asList(b1, b2, b3, b4));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(b2.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(t1.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(t2.getHash(), 0));
+
+        // The chain carries on from the last good block.
+        b3 = b2.createNextBlock(null);
+        Transaction t3 = spend(new TransactionOutPoint(params, 0, t2.getHash()), t2.getOutput(0).getScriptBytes(),
+                outKey, outKey);
+        b3.addTransaction(t3);
+        b3.solve();
+        b4 = b3.createNextBlock(null);
+        chain.addAll(Arrays.asList(b3, b4));
+        assertEquals(b4.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(t2.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(t3.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void outputsInBatchWrites() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash hash1 = Sha256Hash.create(new byte[] {1});
+        Sha256Hash hash2 = Sha256Hash.create(new byte[] {2});
+        StoredTransactionOutput out1 = new StoredTransactionOutput(hash1, 0, Utils.COIN, 1, false, new byte[] {1});
+        StoredTransactionOutput out2 = new StoredTransactionOutput(hash1, 1, Utils.CENT, 1, false, new byte[] {2});
+        StoredTransactionOutput out3 = new StoredTransactionOutput(hash2, 0, Utils.CENT, 1, true, new byte[] {3});
+        store.addUnspentTransactionOutput(out1);
+        List<TransactionOutPoint> outpoints = Arrays.asList(new TransactionOutPoint(params, 0, hash1),
+                new TransactionOutPoint(params, 1, hash1), new TransactionOutPoint(params, 0, hash2));
+
+        // Changes made in a batch are seen before they're committed, and go away if it's aborted.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out1);
+        store.addUnspentTransactionOutput(out2);
+        store.addUnspentTransactionOutput(out3);
+        assertNull(store.getTransactionOutput(hash1, 0));
+        assertEquals(Arrays.asList(null, out2, out3), store.getTransactionOutputs(outpoints));
+        assertTrue(store.hasUnspentOutputs(hash1, 2));
+        store.abortDatabaseBatchWrite();
+        assertEquals(Arrays.asList(out1, null, null), store.getTransactionOutputs(outpoints));
+        assertFalse(store.hasUnspentOutputs(hash2, 1));
+
+        // An output created and spent in the same batch never shows up.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out3);
+        store.removeUnspentTransactionOutput(out3);
+        store.removeUnspentTransactionOutput(out1);
+        store.addUnspentTransactionOutput(out1);
+        store.addUnspentTransactionOutput(out2);
+        store.commitDatabaseBatchWrite();
+        assertEquals(Arrays.asList(out1, out2, null), store.getTransactionOutputs(outpoints));
+        assertEquals(Utils.CENT, store.getTransactionOutput(hash1, 1).getValue());
+        assertFalse(store.hasUnspentOutputs(hash2, 1));
+        store.close();
+    }
+
     @Test
     public void testFirst100KBlocks() throws Exception {
         NetworkParameters params = MainNetParams.get();
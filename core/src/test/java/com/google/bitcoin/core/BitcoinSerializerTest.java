@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 
 import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
@@ -25,6 +26,9 @@ import java.io.ByteArrayOutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.*;
 
@@ -68,6 +72,18 @@ public class BitcoinSerializerTest {
         //assertTrue(LazyParseByteCacheTest.arrayContains(bos.toByteArray(), addrMessage));
     }
 
+    @Test
+    public void testSerializeToArray() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Ping ping = new Ping(0x1234567890L);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(ping, bos);
+        byte[] packet = bs.serialize(ping);
+        assertArrayEquals(bos.toByteArray(), packet);
+        assertEquals(BitcoinSerializer.HEADER_SIZE + 8, packet.length);
+        assertEquals(0x1234567890L, ((Ping) bs.deserialize(ByteBuffer.wrap(packet))).getNonce());
+    }
+
     @Test
     public void testLazyParsing()  throws Exception {
         BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), true, false);
@@ -219,6 +235,43 @@ public class BitcoinSerializerTest {
         assertEquals(thirdBlock.getNonce(), 2850094635L);
     }
 
+    @Test
+    public void testPrecomputedHeaderHashes() throws Exception {
+        // Enough headers to be split over several threads, and a single one which is hashed inline.
+        checkPrecomputedHeaderHashes(40);
+        checkPrecomputedHeaderHashes(1);
+    }
+
+    private void checkPrecomputedHeaderHashes(int numHeaders) throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer bs = new BitcoinSerializer(params);
+        Address to = new ECKey().toAddress(params);
+        Block[] headers = new Block[numHeaders];
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < numHeaders; i++) {
+            prev = prev.createNextBlock(to);
+            headers[i] = prev.cloneAsHeader();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(new HeadersMessage(params, headers), bos);
+        byte[] bytes = bos.toByteArray();
+
+        HeadersMessage hm = (HeadersMessage) bs.deserialize(ByteBuffer.wrap(bytes));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            hm.precomputeHeaderHashes(executor);
+        } finally {
+            executor.shutdown();
+        }
+        List<Block> precomputed = hm.getBlockHeaders();
+        List<Block> fresh = ((HeadersMessage) bs.deserialize(ByteBuffer.wrap(bytes))).getBlockHeaders();
+        assertEquals(numHeaders, precomputed.size());
+        for (int i = 0; i < numHeaders; i++) {
+            assertEquals(headers[i].getHash(), precomputed.get(i).getHash());
+            assertEquals(fresh.get(i).getHash(), precomputed.get(i).getHash());
+        }
+    }
+
     @Test
     public void testBitcoinPacketHeader() {
         try {
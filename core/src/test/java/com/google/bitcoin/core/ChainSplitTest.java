@@ -55,6 +55,7 @@ public class ChainSplitTest {
         Wallet.SendRequest.DEFAULT_FEE_PER_KB = BigInteger.ZERO;
         unitTestParams = UnitTestParams.get();
         wallet = new Wallet(unitTestParams);
+        wallet.setCheckBalances(true);
         wallet.addKey(new ECKey());
         wallet.addKey(new ECKey());
         blockStore = new MemoryBlockStore(unitTestParams);
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DifficultyWindowTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private BlockStore store;
+    private List<StoredBlock> chain;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryBlockStore(params);
+        to = new ECKey().toAddress(params);
+        chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        for (int i = 0; i < 10; i++)
+            chain.add(extend(chain.get(chain.size() - 1)));
+    }
+
+    private StoredBlock extend(StoredBlock prev) throws Exception {
+        StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(next);
+        return next;
+    }
+
+    private void assertWindow(DifficultyWindow window, StoredBlock tip, int depth) throws Exception {
+        StoredBlock cursor = tip;
+        for (int i = 0; i < depth; i++) {
+            DifficultyWindow.Entry entry = window.get(i, store);
+            assertEquals(cursor.getHeader().getHash(), entry.hash);
+            assertEquals(cursor.getHeight(), entry.height);
+            assertEquals(cursor.getHeader().getTimeSeconds(), entry.time);
+            assertEquals(cursor.getHeader().getDifficultyTargetAsInteger(), entry.getTarget());
+            cursor = cursor.getPrev(store);
+        }
+    }
+
+    @Test
+    public void connectAndDisconnect() throws Exception {
+        DifficultyWindow window = new DifficultyWindow(5);
+        window.moveTo(chain.get(8));
+        assertWindow(window, chain.get(8), 5);
+        window.moveTo(chain.get(9));
+        window.moveTo(chain.get(10));
+        assertWindow(window, chain.get(10), 5);
+        // Back to an ancestor still in the window.
+        window.moveTo(chain.get(7));
+        assertWindow(window, chain.get(7), 5);
+        // Onto a side chain.
+        StoredBlock fork = extend(chain.get(5));
+        window.moveTo(fork);
+        assertWindow(window, fork, 5);
+    }
+
+    @Test
+    public void startOfChain() throws Exception {
+        DifficultyWindow window = new DifficultyWindow(5);
+        window.moveTo(chain.get(2));
+        assertWindow(window, chain.get(2), 3);
+        assertNull(window.get(3, store));
+    }
+
+    @Test
+    public void missingFromStore() throws Exception {
+        store = new MemoryBlockStore(params);
+        for (int i = 5; i < chain.size(); i++)
+            store.put(chain.get(i));
+        DifficultyWindow window = new DifficultyWindow(10);
+        window.moveTo(chain.get(10));
+        assertWindow(window, chain.get(10), 6);
+        assertNull(window.get(6, store));
+    }
+}
@@ -14,6 +14,8 @@ import java.util.concurrent.BlockingQueue;
 public abstract class InboundMessageQueuer extends PeerSocketHandler {
     final BlockingQueue<Message> inboundMessages = new ArrayBlockingQueue<Message>(1000);
     final Map<Long, SettableFuture<Void>> mapPingFutures = new HashMap<Long, SettableFuture<Void>>();
+    // Set once the connection to the peer has been closed.
+    final SettableFuture<Void> closed = SettableFuture.create();
 
     public Peer peer;
     public BloomFilter lastReceivedFilter;
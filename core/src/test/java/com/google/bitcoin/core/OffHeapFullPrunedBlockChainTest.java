@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.OffHeapFullPrunedBlockStore;
+
+public class OffHeapFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new OffHeapFullPrunedBlockStore(params, blockCount);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, the outputs aren't kept across restarts.
+    }
+}
@@ -41,9 +41,14 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -909,4 +914,83 @@ public class PeerTest extends TestWithNetworkConnections {
                     || (e instanceof SocketException && e.getMessage().equals("Socket is closed")));
         }
     }
+
+    @Test
+    public void messageExecutorKeepsOrder() throws Exception {
+        // Messages from one peer run one at a time and in order, though the pool has threads to spare.
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        peer.setMessageExecutor(pool);
+        connect();
+        final int count = 200;
+        final List<Long> nonces = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch received = new CountDownLatch(count);
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer p, Message m) {
+                if (m instanceof Pong) {
+                    nonces.add(((Pong) m).getNonce());
+                    received.countDown();
+                }
+                return m;
+            }
+        }, Threading.SAME_THREAD);
+        List<Long> sent = new ArrayList<Long>();
+        for (long i = 0; i < count; i++) {
+            inbound(writeTarget, new Pong(i));
+            sent.add(i);
+        }
+        assertTrue(received.await(30, TimeUnit.SECONDS));
+        assertEquals(sent, nonces);
+        final SettableFuture<Void> disconnected = SettableFuture.create();
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer p, int peerCount) {
+                disconnected.set(null);
+            }
+        }, Threading.SAME_THREAD);
+        closePeer(peer);
+        disconnected.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+    }
+
+    @Test
+    public void disconnectsWhenTooManyMessagesQueue() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        peer.setMessageExecutor(pool);
+        connect();
+        // Make sure the handshake has been processed before holding up the pool.
+        pingAndWait(writeTarget);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        });
+        final AtomicInteger processed = new AtomicInteger();
+        final SettableFuture<Void> disconnected = SettableFuture.create();
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public Message onPreMessageReceived(Peer p, Message m) {
+                if (m instanceof Pong)
+                    processed.incrementAndGet();
+                return m;
+            }
+
+            @Override
+            public void onPeerDisconnected(Peer p, int peerCount) {
+                disconnected.set(null);
+            }
+        }, Threading.SAME_THREAD);
+        // One more message than may wait to be processed.
+        for (long i = 0; i <= PeerSocketHandler.MAX_QUEUED_MESSAGES; i++)
+            inbound(writeTarget, new Pong(i));
+        // The network thread hangs up on the peer without waiting for the pool.
+        writeTarget.closed.get(30, TimeUnit.SECONDS);
+        release.countDown();
+        // The messages that were queued are still processed, and only then is the disconnect seen.
+        disconnected.get(30, TimeUnit.SECONDS);
+        assertEquals(PeerSocketHandler.MAX_QUEUED_MESSAGES, processed.get());
+        pool.shutdown();
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.fail;
+
+public class ScriptVerifierTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    // Builds a transaction spending the given number of outputs paying to key, signing badInput with the wrong key.
+    private static Transaction spend(ECKey key, int inputs, int badInput, List<Script> prevOutScripts)
+            throws ScriptException {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, key);
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        for (int i = 0; i < inputs; i++) {
+            TransactionOutPoint outpoint = new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] {(byte) i}));
+            tx.addInput(new TransactionInput(params, tx, new byte[] {}, outpoint));
+            prevOutScripts.add(scriptPubKey);
+        }
+        for (int i = 0; i < inputs; i++) {
+            TransactionSignature signature = tx.calculateSignature(i, i == badInput ? new ECKey() : key, scriptPubKey,
+                    Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature));
+        }
+        return tx;
+    }
+
+    @Test
+    public void inputsOfOneTransaction() throws Exception {
+        ScriptVerifier verifier = new ScriptVerifier(Threading.CPU_POOL);
+        ECKey key = new ECKey();
+
+        List<Script> prevOutScripts = new ArrayList<Script>();
+        Transaction good = spend(key, 20, -1, prevOutScripts);
+        ScriptVerifier.Batch batch = verifier.newBatch("good");
+        batch.verify(good, prevOutScripts, true);
+        batch.await();
+
+        prevOutScripts = new ArrayList<Script>();
+        Transaction bad = spend(key, 20, 13, prevOutScripts);
+        batch = verifier.newBatch("bad");
+        batch.verify(good, new ArrayList<Script>(prevOutScripts), true);
+        batch.verify(bad, prevOutScripts, true);
+        try {
+            batch.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void errorFailsBatch() throws Exception {
+        // A script throwing an Error, like the AssertionError of an opcode thought unreachable, fails the batch too.
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, new ECKey());
+        TransactionOutPoint outpoint = new TransactionOutPoint(params, 0, Sha256Hash.create(new byte[] {1}));
+        tx.addInput(new TransactionInput(params, tx, new byte[] {}, outpoint) {
+            @Override
+            public Script getScriptSig() throws ScriptException {
+                return new Script(new byte[] {}) {
+                    @Override
+                    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex,
+                                                Script scriptPubKey, boolean enforceP2SH) throws ScriptException {
+                        throw new AssertionError("Unreachable");
+                    }
+                };
+            }
+        });
+        ScriptVerifier.Batch batch = new ScriptVerifier(Threading.CPU_POOL).newBatch("error");
+        batch.verify(tx, Arrays.asList(new Script(new byte[] {})), true);
+        try {
+            batch.await();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
@@ -109,6 +109,7 @@ public class TestWithNetworkConnections {
                 return new InboundMessageQueuer(unitTestParams) {
                     @Override
                     public void connectionClosed() {
+                        closed.set(null);
                     }
 
                     @Override
@@ -20,6 +20,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 
 import static com.google.bitcoin.core.Utils.*;
 import static org.junit.Assert.*;
@@ -117,4 +118,31 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void testDigestIntoBuffer() {
+        byte[] input = "hello world".getBytes();
+        byte[] padded = new byte[input.length + 3];
+        System.arraycopy(input, 0, padded, 3, input.length);
+        byte[] output = new byte[40];
+
+        doubleDigest(padded, 3, input.length, output, 4);
+        assertArrayEquals(doubleDigest(input), Arrays.copyOfRange(output, 4, 36));
+        assertEquals("bc62d4b80d9e36da29c16c5d4d9f11731f36052c72401a76c23c0fb5a9b74423",
+                bytesToHexString(doubleDigest(input)));
+
+        singleDigest(padded, 3, input.length, output, 0);
+        assertEquals("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9",
+                bytesToHexString(Arrays.copyOf(output, 32)));
+
+        doubleDigestTwoBuffers(input, 0, 5, input, 5, input.length - 5, output, 8);
+        assertArrayEquals(doubleDigest(input), Arrays.copyOfRange(output, 8, 40));
+
+        try {
+            doubleDigest(input, 0, input.length, new byte[31], 0);
+            fail();
+        } catch (IllegalArgumentException e) {}
+        // A failed call must not leave state behind for the next one on this thread.
+        assertArrayEquals(doubleDigest(input), doubleDigest(input, 0, input.length));
+    }
 }
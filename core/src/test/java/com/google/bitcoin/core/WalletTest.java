@@ -82,6 +82,7 @@ public class WalletTest extends TestWithWallet {
     @Override
     public void setUp() throws Exception {
         super.setUp();
+        wallet.setCheckBalances(true);
         byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
         secureRandom.nextBytes(salt);
         Protos.ScryptParameters.Builder scryptParametersBuilder = Protos.ScryptParameters.newBuilder().setSalt(ByteString.copyFrom(salt));
@@ -532,7 +533,9 @@ public class WalletTest extends TestWithWallet {
         Threading.waitForUserCode();
         assertEquals(bitcoinValueToFriendlyString(wallet.getBalance()), "0.90");
         assertEquals(null, txn[0]);
-        assertEquals(2, confTxns.size());
+        // tx1 has no confidence listeners of its own, so isn't reported as buried by the new block.
+        assertEquals(1, confTxns.size());
+        assertEquals(2, tx1.getConfidence().getDepthInBlocks());
         assertEquals(txn[1].getHash(), send1.getHash());
         assertEquals(bitcoinValueToFriendlyString(bigints[2]), "1.00");
         assertEquals(bitcoinValueToFriendlyString(bigints[3]), "0.90");
@@ -543,11 +546,16 @@ public class WalletTest extends TestWithWallet {
         sendMoneyToWallet(send2, AbstractBlockChain.NewBlockType.BEST_CHAIN);
         assertEquals(bitcoinValueToFriendlyString(wallet.getBalance()), "0.80");
         Threading.waitForUserCode();
+        // Only a transaction somebody is waiting on is reported as buried by an empty block.
+        ListenableFuture<Transaction> depthFuture = send2.getConfidence().getDepthFuture(2);
         BlockPair b4 = createFakeBlock(blockStore);
         confTxns.clear();
         wallet.notifyNewBestBlock(b4.storedBlock);
         Threading.waitForUserCode();
-        assertEquals(3, confTxns.size());
+        assertEquals(1, confTxns.size());
+        assertEquals(send2, confTxns.getFirst());
+        assertTrue(depthFuture.isDone());
+        assertEquals(4, tx1.getConfidence().getDepthInBlocks());
     }
 
     @Test
@@ -983,6 +991,24 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        wallet = new Wallet(params);
+        ECKey key1 = new ECKey(), key2 = new ECKey();
+        assertEquals(2, wallet.addKeys(Lists.newArrayList(key1, key2, key1)));
+        assertEquals(key1, wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertEquals(key2, wallet.findKeyFromPubKey(key2.getPubKey()));
+        assertNull(wallet.findKeyFromPubHash(new ECKey().getPubKeyHash()));
+        assertTrue(wallet.removeKey(key1));
+        assertFalse(wallet.hasKey(key1));
+        assertNull(wallet.findKeyFromPubHash(key1.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key1.getPubKey()));
+        // Encrypting replaces the keys, the lookups must find the new ones.
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.findKeyFromPubHash(key2.getPubKeyHash()).isEncrypted());
+        assertTrue(wallet.findKeyFromPubKey(key2.getPubKey()).isEncrypted());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         wallet = new Wallet(params);
@@ -1161,6 +1187,44 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
     }
 
+    @Test
+    public void incrementalBloomFilter() throws Exception {
+        wallet.getBloomFilter(10, 1e-6, 1);
+        assertEquals(2, wallet.getBloomFilterElementCount());
+
+        // Keys and transactions added after the filter was built are put into it as they arrive.
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Transaction t1 = createFakeTx(params, CENT, key);
+        StoredBlock b1 = createFakeBlock(blockStore, t1).storedBlock;
+        wallet.receiveFromBlock(t1, b1, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        BloomFilter incremental = wallet.getBloomFilter(10, 1e-6, 1);
+        assertEquals(5, wallet.getBloomFilterElementCount());
+        assertTrue(incremental.contains(key.getPubKey()));
+        assertTrue(incremental.contains(new TransactionOutPoint(params, 0, t1).bitcoinSerialize()));
+
+        // Asking for a different filter makes the wallet start again from scratch, which must give the same answer.
+        wallet.getBloomFilter(10, 1e-6, 2);
+        assertArrayEquals(wallet.getBloomFilter(10, 1e-6, 1).bitcoinSerialize(), incremental.bitcoinSerialize());
+    }
+
+    @Test
+    public void bloomFilterAfterAddingOlderKey() throws Exception {
+        wallet.getBloomFilter(10, 1e-6, 1);
+
+        // A block transaction pays the wallet and a key that's older than the block but only added to the wallet later.
+        ECKey key = new ECKey();
+        Transaction t1 = createFakeTx(params, CENT, myKey);
+        t1.addOutput(new TransactionOutput(params, t1, CENT, key));
+        StoredBlock b1 = createFakeBlock(blockStore, t1).storedBlock;
+        key.setCreationTimeSeconds(b1.getHeader().getTimeSeconds() - 60);
+        wallet.receiveFromBlock(t1, b1, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.addKey(key);
+
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, t1.getOutputs().size() - 1, t1);
+        assertTrue(wallet.getBloomFilter(10, 1e-6, 1).contains(outPoint.bitcoinSerialize()));
+    }
+
     @Test
     public void autosaveImmediate() throws Exception {
         // Test that the wallet will save itself automatically when it changes.
@@ -1237,6 +1301,64 @@ public class WalletTest extends TestWithWallet {
         assertEquals(f, results[1]);
     }
 
+    @Test
+    public void saveChangesToFile() throws Exception {
+        File f = File.createTempFile(CoinDefinition.coinName.toLowerCase() +"j-unit-test", null);
+        File directory = f.getAbsoluteFile().getParentFile();
+        wallet.saveChangesToFile(File.createTempFile("wallet", null, directory), f);
+        Sha256Hash hash1 = Sha256Hash.hashFileContents(f);
+
+        // Changes only go to the log.
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Transaction t1 = createFakeTx(params, toNanoCoins(5, 0), key);
+        chain.add(createFakeBlock(blockStore, t1).block);
+        wallet.saveChangesToFile(File.createTempFile("wallet", null, directory), f);
+        chain.add(createFakeBlock(blockStore).block);
+        chain.add(createFakeBlock(blockStore).block);
+        wallet.saveChangesToFile(File.createTempFile("wallet", null, directory), f);
+        assertEquals(hash1, Sha256Hash.hashFileContents(f));
+
+        Wallet loaded = Wallet.loadFromFile(f);
+        assertTrue(loaded.hasKey(key));
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getLastBlockSeenHash(), loaded.getLastBlockSeenHash());
+        // The record of t1 was written two blocks ago, but it's as deep as in the wallet.
+        assertEquals(3, loaded.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+
+        // A removal can't be logged, so the whole wallet is written again.
+        wallet.removeKey(key);
+        wallet.saveChangesToFile(File.createTempFile("wallet", null, directory), f);
+        assertFalse(hash1.equals(Sha256Hash.hashFileContents(f)));
+        assertFalse(Wallet.loadFromFile(f).hasKey(key));
+    }
+
+    @Test
+    public void saveKeepsNewerSnapshot() throws Exception {
+        // Two saves in flight at once, where the one that copied the wallet first is the last to get it to disk.
+        File f = File.createTempFile(CoinDefinition.coinName.toLowerCase() +"j-unit-test", null);
+        File directory = f.getAbsoluteFile().getParentFile();
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Protos.Wallet older = serializer.walletToProto(wallet);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Protos.Wallet newer = serializer.walletToProto(wallet);
+
+        assertTrue(wallet.writeSnapshot(newer, 2, File.createTempFile("wallet", null, directory), f));
+        Sha256Hash hash = Sha256Hash.hashFileContents(f);
+        File temp = File.createTempFile("wallet", null, directory);
+        assertFalse(wallet.writeSnapshot(older, 1, temp, f));
+        assertFalse(temp.exists());
+        assertEquals(hash, Sha256Hash.hashFileContents(f));
+        assertTrue(Wallet.loadFromFile(f).hasKey(key));
+
+        // Saves that finish in order are all written.
+        wallet.removeKey(key);
+        Protos.Wallet newest = serializer.walletToProto(wallet);
+        assertTrue(wallet.writeSnapshot(newest, 3, File.createTempFile("wallet", null, directory), f));
+        assertFalse(Wallet.loadFromFile(f).hasKey(key));
+    }
+
     @Test
     public void spendOutputFromPendingTransaction() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -1616,11 +1738,11 @@ public class WalletTest extends TestWithWallet {
 
         // Now test coin selection properly selects coin*depth
         for (int i = 0; i < 100; i++) {
-            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+            block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, i + 1);
             wallet.notifyNewBestBlock(block);
         }
 
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 101);
         Transaction tx6 = createFakeTx(params, Utils.COIN, myAddress);
         wallet.receiveFromBlock(tx6, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
         assertTrue(tx5.getOutput(0).isMine(wallet) && tx5.getOutput(0).isAvailableForSpending() && tx5.getConfidence().getDepthInBlocks() == 100);
@@ -1637,7 +1759,7 @@ public class WalletTest extends TestWithWallet {
         Transaction spend13 = wallet.createSend(notMyAddr, CENT);
         assertTrue(spend13.getOutputs().size() == 1 && spend13.getOutput(0).getValue().equals(CENT));
 
-        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 1);
+        block = new StoredBlock(makeSolvedTestBlock(blockStore, notMyAddr), BigInteger.ONE, 102);
         wallet.notifyNewBestBlock(block);
         assertTrue(tx5.getOutput(0).isMine(wallet) && tx5.getOutput(0).isAvailableForSpending() && tx5.getConfidence().getDepthInBlocks() == 102);
         assertTrue(tx6.getOutput(0).isMine(wallet) && tx6.getOutput(0).isAvailableForSpending() && tx6.getConfidence().getDepthInBlocks() == 2);
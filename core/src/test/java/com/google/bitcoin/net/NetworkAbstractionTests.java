@@ -46,7 +46,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3},
+                new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -57,12 +58,15 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.start();
+        } else if (clientType == 4) {
+            channels = new MultiNioClientManager(2);
+            channels.startAndWait();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
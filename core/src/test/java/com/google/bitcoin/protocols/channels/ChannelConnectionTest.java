@@ -111,6 +111,20 @@ public class ChannelConnectionTest extends TestWithWallet {
 
     @Test
     public void testSimpleChannel() throws Exception {
+        simpleChannel(null);
+    }
+
+    @Test
+    public void testSimpleChannelWithMessageExecutor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            simpleChannel(executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void simpleChannel(@Nullable Executor messageExecutor) throws Exception {
         // Test with network code and without any issues. We'll broadcast two txns: multisig contract and settle transaction.
         final SettableFuture<ListenableFuture<PaymentChannelServerState>> serverCloseFuture = SettableFuture.create();
         final SettableFuture<Sha256Hash> channelOpenFuture = SettableFuture.create();
@@ -138,6 +152,7 @@ public class ChannelConnectionTest extends TestWithWallet {
                         };
                     }
                 });
+        server.setMessageExecutor(messageExecutor);
         server.bindAndStart(4243);
 
         PaymentChannelClientConnection client = new PaymentChannelClientConnection(
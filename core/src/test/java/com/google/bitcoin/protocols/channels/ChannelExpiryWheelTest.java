@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChannelExpiryWheelTest {
+    private BlockingQueue<List<String>> batches;
+    private ChannelExpiryWheel.Handler<String> handler;
+
+    @Before
+    public void setUp() throws Exception {
+        // Other tests in the same JVM may have left the clock mocked.
+        Utils.mockTime = null;
+        batches = new LinkedBlockingQueue<List<String>>();
+        handler = new ChannelExpiryWheel.Handler<String>() {
+            @Override
+            public void expired(List<String> channels) {
+                batches.add(channels);
+            }
+        };
+    }
+
+    @Test
+    public void batchesExpiries() throws Exception {
+        ChannelExpiryWheel wheel = new ChannelExpiryWheel(50, 8);
+        long now = Utils.currentTimeMillis();
+        wheel.schedule("overdue", now - 60 * 60 * 1000, handler);
+        assertEquals(Arrays.asList("overdue"), batches.poll(5, TimeUnit.SECONDS));
+
+        now = Utils.currentTimeMillis();
+        long start = System.currentTimeMillis();
+        wheel.schedule("a", now + 200, handler);
+        wheel.schedule("b", now + 200, handler);
+        // Several turns of the wheel later, so shares a bucket with the others for a while.
+        wheel.schedule("later", now + 8 * 50 * 3 + 200, handler);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")),
+                new HashSet<String>(batches.poll(5, TimeUnit.SECONDS)));
+        assertNull(batches.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("later"), batches.poll(5, TimeUnit.SECONDS));
+        // The wheel ticks on real time.
+        assertTrue(System.currentTimeMillis() - start >= 8 * 50 * 3);
+    }
+
+    @Test
+    public void unschedules() throws Exception {
+        ChannelExpiryWheel wheel = new ChannelExpiryWheel(50, 8);
+        long now = Utils.currentTimeMillis();
+        wheel.schedule("closed", now + 100, handler);
+        wheel.schedule("open", now + 100, handler);
+        wheel.unschedule("closed");
+        wheel.unschedule("never scheduled");
+        assertEquals(Arrays.asList("open"), batches.poll(5, TimeUnit.SECONDS));
+        assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reschedules() throws Exception {
+        ChannelExpiryWheel wheel = new ChannelExpiryWheel(50, 8);
+        long now = Utils.currentTimeMillis();
+        wheel.schedule("a", now + 60 * 60 * 1000, handler);
+        wheel.schedule("a", now + 100, handler);
+        assertEquals(Arrays.asList("a"), batches.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.WalletLog;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletFiles;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PaymentChannelServerJournalTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private Wallet wallet;
+    private StoredPaymentChannelServerStates channels;
+    private StoredServerChannel stored;
+    private File file;
+
+    private static final TransactionBroadcaster failBroadcaster = new TransactionBroadcaster() {
+        @Override
+        public ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+            fail();
+            return null;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        channels = new StoredPaymentChannelServerStates(wallet, failBroadcaster);
+        wallet.addExtension(channels);
+        ECKey key = new ECKey();
+        Transaction contract = new Transaction(params);
+        contract.addOutput(Utils.COIN, key);
+        TransactionOutput clientOutput = new TransactionOutput(params, null, Utils.CENT, key);
+        long unlockTime = Utils.currentTimeMillis() / 1000 + 60 * 60 * 24;
+        stored = new StoredServerChannel(null, contract, clientOutput, unlockTime, key, BigInteger.ZERO, null);
+        channels.putChannel(stored);
+        file = File.createTempFile("channels", ".journal");
+        file.deleteOnExit();
+    }
+
+    private void pay(PaymentChannelServerJournal journal, long value) throws Exception {
+        stored.updateValueToMe(BigInteger.valueOf(value), new byte[] {(byte) value, 1, 2, 3});
+        journal.append(stored).get();
+    }
+
+    private StoredPaymentChannelServerStates reload(File walletFile) throws Exception {
+        Wallet saved = new Wallet(params);
+        StoredPaymentChannelServerStates reloaded = new StoredPaymentChannelServerStates(saved, failBroadcaster);
+        saved.addExtension(reloaded);
+        new WalletProtobufSerializer().readWallet(WalletLog.readWallet(walletFile), saved);
+        return reloaded;
+    }
+
+    @Test
+    public void replaysLatestValue() throws Exception {
+        PaymentChannelServerJournal journal = new PaymentChannelServerJournal(file, wallet, channels, 100, 0);
+        pay(journal, 5);
+        pay(journal, 7);
+        // Simulate a crash: the wallet never heard of the payments and the last record was only half written.
+        stored.updateValueToMe(BigInteger.ZERO, null);
+        long goodLength = file.length();
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(new byte[] {0, 0, 0, 50, 1, 2, 3});
+        stream.close();
+
+        new PaymentChannelServerJournal(file, wallet, channels, 100, 0);
+        assertEquals(BigInteger.valueOf(7), stored.bestValueToMe);
+        assertArrayEquals(new byte[] {7, 1, 2, 3}, stored.bestValueSignature);
+        assertEquals(goodLength, file.length());
+    }
+
+    @Test
+    public void compacts() throws Exception {
+        File walletFile = File.createTempFile("channels", ".wallet");
+        walletFile.deleteOnExit();
+        wallet.autosaveToFile(walletFile, 0, TimeUnit.SECONDS, null);
+        PaymentChannelServerJournal journal = new PaymentChannelServerJournal(file, wallet, channels, 3, 0);
+        pay(journal, 1);
+        pay(journal, 2);
+        assertTrue(file.length() > 0);
+        journal.close();
+        assertEquals(0, file.length());
+
+        // The journal was folded into the wallet extension saved on disk.
+        StoredPaymentChannelServerStates reloaded = reload(walletFile);
+        assertEquals(BigInteger.valueOf(2), reloaded.getChannel(stored.contract.getHash()).bestValueToMe);
+    }
+
+    @Test
+    public void keepsRecordsAppendedWhileCompacting() throws Exception {
+        File walletFile = File.createTempFile("channels", ".wallet");
+        walletFile.deleteOnExit();
+        final PaymentChannelServerJournal journal = new PaymentChannelServerJournal(file, wallet, channels, 100, 0);
+        pay(journal, 1);
+        final long recordLength = file.length();
+        pay(journal, 2);
+        wallet.autosaveToFile(walletFile, 0, TimeUnit.SECONDS, new WalletFiles.Listener() {
+            @Override
+            public void onBeforeAutoSave(File tempFile) {
+                // Appends don't wait for the wallet to be saved.
+                try {
+                    pay(journal, 3);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void onAfterAutoSave(File newlySavedFile) {
+            }
+        });
+        journal.compact();
+        // Only the record appended during the save is left.
+        assertEquals(recordLength, file.length());
+
+        StoredPaymentChannelServerStates reloaded = reload(walletFile);
+        new PaymentChannelServerJournal(file, wallet, reloaded, 100, 0);
+        assertEquals(BigInteger.valueOf(3), reloaded.getChannel(stored.contract.getHash()).bestValueToMe);
+    }
+
+    @Test
+    public void replaysMissingSignature() throws Exception {
+        PaymentChannelServerJournal journal = new PaymentChannelServerJournal(file, wallet, channels, 100, 0);
+        stored.updateValueToMe(BigInteger.valueOf(5), null);
+        journal.append(stored).get();
+        stored.updateValueToMe(BigInteger.ZERO, new byte[] {1});
+
+        new PaymentChannelServerJournal(file, wallet, channels, 100, 0);
+        assertEquals(BigInteger.valueOf(5), stored.bestValueToMe);
+        assertNull(stored.bestValueSignature);
+    }
+
+    @Test
+    public void keepsJournalIfWalletNotSaved() throws Exception {
+        // Without auto saving the payments would be lost if the journal were emptied.
+        PaymentChannelServerJournal journal = new PaymentChannelServerJournal(file, wallet, channels, 3, 0);
+        pay(journal, 1);
+        pay(journal, 2);
+        long length = file.length();
+        journal.close();
+        assertEquals(length, file.length());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class PaymentSigHashTemplateTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void matchesHashForSignature() throws Exception {
+        ECKey clientKey = new ECKey(), serverKey = new ECKey();
+        Script multisigScript = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(clientKey, serverKey));
+        Transaction contract = new Transaction(params);
+        contract.addOutput(Utils.COIN, multisigScript);
+        TransactionOutput clientOutput = new TransactionOutput(params, null, Utils.COIN, clientKey.toAddress(params));
+        PaymentSigHashTemplate template = new PaymentSigHashTemplate(params, contract, clientOutput);
+
+        for (BigInteger refund : new BigInteger[] {Utils.COIN, Utils.CENT, BigInteger.valueOf(5460), BigInteger.ONE}) {
+            // As the server state used to do for every payment.
+            Transaction tx = new Transaction(params);
+            tx.addOutput(new TransactionOutput(params, tx, refund, clientOutput.getScriptBytes()));
+            tx.addInput(contract.getOutput(0));
+            assertEquals(tx.hashForSignature(0, multisigScript, Transaction.SigHash.SINGLE, true),
+                    template.hashForRefund(refund));
+        }
+        Transaction tx = new Transaction(params);
+        tx.addInput(contract.getOutput(0));
+        assertEquals(tx.hashForSignature(0, multisigScript, Transaction.SigHash.NONE, true),
+                template.hashForRefund(BigInteger.ZERO));
+    }
+}
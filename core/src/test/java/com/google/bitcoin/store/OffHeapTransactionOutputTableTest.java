@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class OffHeapTransactionOutputTableTest {
+    private static StoredTransactionOutput output(int n, int index) {
+        Sha256Hash hash = Sha256Hash.create(intBytes(n));
+        // Scripts of varying length so records don't all line up.
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n * 1000L + index), n, n % 7 == 0,
+                new byte[n % 50]);
+    }
+
+    private static byte[] intBytes(int n) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayBE(n, bytes, 0);
+        return bytes;
+    }
+
+    private static void assertHas(OffHeapTransactionOutputTable table, StoredTransactionOutput expected) {
+        StoredTransactionOutput out = table.get(expected.getHash(), expected.getIndex());
+        assertNotNull(out);
+        assertEquals(expected.getValue(), out.getValue());
+        assertEquals(expected.getHeight(), out.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), out.getScriptBytes());
+    }
+
+    private void putGetRemove(OffHeapTransactionOutputTable table) throws Exception {
+        // Enough to make the table grow several times and the data area be compacted.
+        for (int n = 0; n < 50000; n++)
+            for (int i = 0; i < 2; i++)
+                table.put(output(n, i));
+        assertEquals(100000, table.size());
+        for (int n = 0; n < 50000; n++) {
+            assertHas(table, output(n, 0));
+            assertHas(table, output(n, 1));
+            assertFalse(table.contains(output(n, 2).getHash(), 2));
+        }
+        for (int n = 0; n < 50000; n++)
+            assertTrue(table.remove(output(n, 0).getHash(), 0));
+        assertFalse(table.remove(output(0, 0).getHash(), 0));
+        assertEquals(50000, table.size());
+        for (int n = 0; n < 50000; n++) {
+            assertNull(table.get(output(n, 0).getHash(), 0));
+            assertHas(table, output(n, 1));
+        }
+    }
+
+    @Test
+    public void directBuffers() throws Exception {
+        putGetRemove(new OffHeapTransactionOutputTable(0, null));
+    }
+
+    @Test
+    public void mappedFiles() throws Exception {
+        File directory = Files.createTempDir();
+        try {
+            putGetRemove(new OffHeapTransactionOutputTable(0, directory));
+        } finally {
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void abortBatch() throws Exception {
+        OffHeapTransactionOutputTable table = new OffHeapTransactionOutputTable(0, null);
+        for (int n = 0; n < 100; n++)
+            table.put(output(n, 0));
+
+        table.beginBatch();
+        for (int n = 0; n < 50; n++)
+            assertTrue(table.remove(output(n, 0).getHash(), 0));
+        // Add some back, add new ones and replace one, growing the table on the way.
+        for (int n = 0; n < 10; n++)
+            table.put(output(n, 0));
+        for (int n = 100; n < 1000; n++)
+            table.put(output(n, 0));
+        table.put(new StoredTransactionOutput(output(75, 0).getHash(), 0, BigInteger.ONE, 0, false, new byte[0]));
+        table.beginBatch();
+        assertEquals(960, table.size());
+        table.abortBatch();
+
+        assertEquals(100, table.size());
+        for (int n = 0; n < 100; n++)
+            assertHas(table, output(n, 0));
+        assertFalse(table.contains(output(100, 0).getHash(), 0));
+
+        // Committed changes stay.
+        table.beginBatch();
+        assertTrue(table.remove(output(0, 0).getHash(), 0));
+        table.commitBatch();
+        table.abortBatch();
+        assertNull(table.get(output(0, 0).getHash(), 0));
+    }
+}
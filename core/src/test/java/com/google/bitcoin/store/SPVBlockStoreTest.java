@@ -17,6 +17,7 @@
 package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.StoredBlock;
@@ -24,8 +25,11 @@ import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
 
@@ -54,8 +58,52 @@ public class SPVBlockStoreTest {
         store = new SPVBlockStore(params, f);
         StoredBlock b2 = store.get(b1.getHeader().getHash());
         assertEquals(b1, b2);
+        // The header was given its stored hash rather than hashed again, but must still be the same header.
+        assertArrayEquals(b1.getHeader().bitcoinSerialize(),
+                Arrays.copyOf(b2.getHeader().bitcoinSerialize(), Block.HEADER_SIZE));
+        assertEquals(b1.getHeader().getHash(), b2.getHeader().getHash());
         // Check the chain head was stored correctly also.
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void ringWrapsAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10, true);
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 25; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            blocks.add(prev);
+        }
+        store.close();
+
+        // Reopen without the caches, both with and without the index. Only the last ten blocks survive.
+        for (boolean useIndex : new boolean[] {true, false}) {
+            store = new SPVBlockStore(params, f, 10, useIndex);
+            for (int i = 0; i < blocks.size(); i++) {
+                StoredBlock block = store.get(blocks.get(i).getHeader().getHash());
+                if (i < 15)
+                    assertNull(block);
+                else
+                    assertEquals(blocks.get(i), block);
+            }
+            assertEquals(blocks.get(24), store.getChainHead());
+            store.close();
+        }
+
+        try {
+            new SPVBlockStore(params, f, 11, true);
+            fail();
+        } catch (BlockStoreException e) {
+            // File was created with a different number of headers.
+        }
+    }
 }
@@ -9,6 +9,7 @@ import com.google.bitcoin.script.ScriptBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.bitcoin.utils.TestUtils;
 import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos;
 import org.junit.Before;
@@ -21,6 +22,7 @@ import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import static com.google.bitcoin.utils.TestUtils.createFakeTx;
@@ -250,6 +252,33 @@ public class WalletProtobufSerializerTest {
         return new WalletProtobufSerializer().readWallet(input);
     }
 
+    @Test
+    public void manyKeysAndTransactions() throws Exception {
+        // Enough of each to be decoded in several chunks at once.
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 1000; i++)
+            keys.add(new ECKey());
+        myWallet.addKeys(keys);
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 1000; i++) {
+            Transaction tx = createFakeTx(params, BigInteger.valueOf(i + 1), myAddress);
+            myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, tx));
+            txns.add(tx);
+        }
+
+        Wallet wallet1 = roundTrip(myWallet);
+        assertEquals(1001, wallet1.getKeychainSize());
+        for (ECKey key : keys)
+            assertTrue(wallet1.hasKey(key));
+        assertEquals(1000, wallet1.getTransactions(true).size());
+        for (Transaction tx : txns) {
+            Transaction tx1 = wallet1.getTransaction(tx.getHash());
+            // The stored hash is trusted, so check it against the transaction read back.
+            assertEquals(tx.getHash(), new Transaction(params, tx1.bitcoinSerialize()).getHash());
+        }
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
     @Test
     public void testRoundTripNormalWallet() throws Exception {
         Wallet wallet1 = roundTrip(myWallet);     
@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static void writeBlock(ByteArrayOutputStream out, Block block) throws IOException {
+        byte[] bytes = block.bitcoinSerialize();
+        byte[] header = new byte[8];
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        Utils.uint32ToByteArrayLE(bytes.length, header, 4);
+        out.write(header);
+        out.write(bytes);
+    }
+
+    private static File writeFile(ByteArrayOutputStream out) throws IOException {
+        File file = File.createTempFile("blk", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.toByteArray());
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void readsAcrossFiles() throws Exception {
+        Address to = new ECKey().toAddress(params);
+        Block b1 = params.getGenesisBlock().createNextBlock(to);
+        Block b2 = b1.createNextBlock(to);
+        Block b3 = b2.createNextBlock(to);
+
+        // Garbage before the first block and zero padding after it, as the reference client preallocates files.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {1, 2, 3, (byte) (params.getPacketMagic() >>> 24)});
+        writeBlock(out, b1);
+        out.write(new byte[1000]);
+        File file1 = writeFile(out);
+
+        // The last block in the second file is cut short.
+        out = new ByteArrayOutputStream();
+        writeBlock(out, b2);
+        writeBlock(out, b3);
+        byte[] bytes = out.toByteArray();
+        out = new ByteArrayOutputStream();
+        out.write(bytes, 0, bytes.length - 10);
+        File file2 = writeFile(out);
+
+        File missing = new File(file1.getParentFile(), file1.getName() + ".missing");
+        List<Block> blocks = new ArrayList<Block>();
+        for (Block block : new BlockFileLoader(params, Arrays.asList(file1, missing, file2)))
+            blocks.add(block);
+        assertEquals(Arrays.asList(b1, b2), blocks);
+    }
+}
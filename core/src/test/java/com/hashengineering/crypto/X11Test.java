@@ -0,0 +1,89 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hashengineering.crypto;
+
+import com.google.bitcoin.core.CoinDefinition;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.MainNetParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class X11Test {
+    private static final byte[] genesisHeader =
+            MainNetParams.get().getGenesisBlock().cloneAsHeader().bitcoinSerialize();
+
+    @Test
+    public void genesis() {
+        byte[] hash = X11.x11Digest(Arrays.copyOf(genesisHeader, 80));
+        assertEquals(CoinDefinition.genesisHash, Utils.bytesToHexString(Utils.reverseBytes(hash)));
+        // Hashing the same thing twice must give the same answer, ie the engines were reset properly.
+        assertArrayEquals(hash, X11.x11Digest(Arrays.copyOf(genesisHeader, 80)));
+    }
+
+    @Test
+    public void rangeAndOutputBuffer() {
+        byte[] expected = X11.x11Digest(Arrays.copyOf(genesisHeader, 80));
+        byte[] padded = new byte[100];
+        System.arraycopy(genesisHeader, 0, padded, 7, 80);
+        assertArrayEquals(expected, X11.x11Digest(padded, 7, 80));
+
+        byte[] output = new byte[40];
+        X11.x11Digest(padded, 7, 80, output, 5);
+        assertArrayEquals(expected, Arrays.copyOfRange(output, 5, 37));
+        assertEquals(0, output[4]);
+        assertEquals(0, output[37]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputTooSmall() {
+        X11.x11Digest(genesisHeader, 0, 80, new byte[31], 0);
+    }
+
+    @Test
+    public void threads() throws Exception {
+        final byte[] expected = X11.x11Digest(Arrays.copyOf(genesisHeader, 80));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        byte[] output = new byte[32];
+                        for (int j = 0; j < 50; j++) {
+                            X11.x11Digest(genesisHeader, 0, 80, output, 0);
+                            if (!Arrays.equals(expected, output))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -50,7 +50,12 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
-        for (Block block : loader)
-            chain.add(block);
+        if (chain instanceof FullPrunedBlockChain) {
+            // Checks and scripts of the blocks coming up are run whilst each one is connected.
+            ((FullPrunedBlockChain) chain).addAll(loader);
+        } else {
+            for (Block block : loader)
+                chain.add(block);
+        }
     }
 }
@@ -0,0 +1,115 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures double SHA-256 throughput as the number of hashing threads grows, comparing {@link Utils#doubleDigest}
+ * against the single, synchronized MessageDigest it used to share between all threads. Runs a few warmup rounds
+ * before the measured ones, in the style of a JMH throughput benchmark.
+ */
+public class DigestBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ROUND_MILLIS = 1000;
+
+    private interface Hasher {
+        void hash(byte[] input, byte[] output);
+    }
+
+    private static final MessageDigest sharedDigest;
+    static {
+        try {
+            sharedDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    private static final Hasher LOCKED = new Hasher() {
+        @Override
+        public void hash(byte[] input, byte[] output) {
+            synchronized (sharedDigest) {
+                sharedDigest.reset();
+                sharedDigest.update(input, 0, input.length);
+                byte[] first = sharedDigest.digest();
+                System.arraycopy(sharedDigest.digest(first), 0, output, 0, 32);
+            }
+        }
+    };
+
+    private static final Hasher PER_THREAD = new Hasher() {
+        @Override
+        public void hash(byte[] input, byte[] output) {
+            Utils.doubleDigest(input, 0, input.length, output, 0);
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: DigestBenchmark [maxThreads] [inputSize]");
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int inputSize = args.length > 1 ? Integer.parseInt(args[1]) : 250;  // Roughly a typical transaction.
+
+        System.out.println(String.format("%8s %18s %18s %8s", "threads", "locked ops/s", "per-thread ops/s", "ratio"));
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads < maxThreads; threads *= 2)
+            threadCounts.add(threads);
+        threadCounts.add(maxThreads);
+        for (int threads : threadCounts) {
+            double locked = measure(LOCKED, threads, inputSize);
+            double perThread = measure(PER_THREAD, threads, inputSize);
+            System.out.println(String.format("%8d %18.0f %18.0f %8.2f", threads, locked, perThread, perThread / locked));
+        }
+    }
+
+    /** Returns the mean number of hashes per second over the measured rounds, across all threads. */
+    private static double measure(final Hasher hasher, int threads, final int inputSize) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < WARMUP_ROUNDS; i++)
+                runRound(executor, hasher, threads, inputSize);
+            long total = 0;
+            for (int i = 0; i < MEASURED_ROUNDS; i++)
+                total += runRound(executor, hasher, threads, inputSize);
+            return total / (MEASURED_ROUNDS * ROUND_MILLIS / 1000.0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long runRound(ExecutorService executor, final Hasher hasher, int threads, final int inputSize)
+            throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ROUND_MILLIS);
+        List<Future<Long>> results = new ArrayList<Future<Long>>(threads);
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    byte[] input = new byte[inputSize];
+                    byte[] output = new byte[32];
+                    long ops = 0;
+                    while (System.nanoTime() < deadline) {
+                        hasher.hash(input, output);
+                        // Feed the result back in so the JIT can't discard the work.
+                        input[(int) (ops % inputSize)] ^= output[0];
+                        ops++;
+                    }
+                    return ops;
+                }
+            }));
+        }
+        long ops = 0;
+        for (Future<Long> result : results)
+            ops += result.get();
+        return ops;
+    }
+}
@@ -0,0 +1,145 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.protocols.channels.PaymentChannelServerState;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures how many payments per second {@link PaymentChannelServerState#incrementPayment(BigInteger, byte[])} can
+ * accept across many open channels, which is what bounds a server selling something by the increment. The client
+ * signatures are made up front so only the server's checks are timed. A set of channels is run through first to warm
+ * up, then a fresh set is measured.
+ */
+public class PaymentChannelBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final BigInteger CHANNEL_VALUE = Utils.COIN;
+    private static final BigInteger INCREMENT = BigInteger.valueOf(1000);
+
+    private static final TransactionBroadcaster broadcaster = new TransactionBroadcaster() {
+        @Override
+        public ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+            return Futures.immediateFuture(tx);
+        }
+    };
+
+    private static class Channel {
+        PaymentChannelServerState server;
+        BigInteger[] refunds;
+        byte[][] signatures;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: PaymentChannelBenchmark [channels] [paymentsPerChannel] [threads]");
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int payments = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            System.out.println(String.format("%d payments on %d channels with %d threads", channels * payments,
+                    channels, threads));
+            System.out.println(String.format("%-28s %.0f payments/s", "checking signatures:",
+                    measure(executor, channels, payments)));
+            // Everything but the ECDSA verification, which unless the native verifier is in use dominates the above.
+            ECKey.FAKE_SIGNATURES = true;
+            System.out.println(String.format("%-28s %.0f payments/s", "without ECDSA:",
+                    measure(executor, channels, payments)));
+        } finally {
+            ECKey.FAKE_SIGNATURES = false;
+            executor.shutdown();
+        }
+    }
+
+    private static double measure(ExecutorService executor, int channels, int payments) throws Exception {
+        Wallet wallet = new Wallet(params);
+        run(executor, open(executor, wallet, channels, payments));
+        List<Channel> measured = open(executor, wallet, channels, payments);
+        long start = System.nanoTime();
+        run(executor, measured);
+        return (long) channels * payments / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // Opens the channels on the server side and has the clients sign their payments, in parallel as signing is slow.
+    private static List<Channel> open(ExecutorService executor, final Wallet wallet, int channels, final int payments)
+            throws Exception {
+        List<Future<Channel>> futures = new ArrayList<Future<Channel>>(channels);
+        for (int i = 0; i < channels; i++) {
+            futures.add(executor.submit(new Callable<Channel>() {
+                @Override
+                public Channel call() throws Exception {
+                    return open(wallet, payments);
+                }
+            }));
+        }
+        List<Channel> result = new ArrayList<Channel>(channels);
+        for (Future<Channel> future : futures)
+            result.add(future.get());
+        return result;
+    }
+
+    private static Channel open(Wallet wallet, int payments) throws Exception {
+        ECKey clientKey = new ECKey(), serverKey = new ECKey();
+        Script multisigScript = ScriptBuilder.createMultiSigOutputScript(2, ImmutableList.of(clientKey, serverKey));
+        long expireTime = Utils.currentTimeMillis() / 1000 + 60 * 60 * 24;
+
+        // The contract spends some made up output, the server never sees where the money came from.
+        Transaction contract = new Transaction(params);
+        contract.addInput(new TransactionInput(params, contract, new byte[] {0},
+                new TransactionOutPoint(params, 0, new Sha256Hash(Utils.doubleDigest(clientKey.getPubKey())))));
+        contract.addOutput(CHANNEL_VALUE, multisigScript);
+
+        Transaction refund = new Transaction(params);
+        refund.addInput(contract.getOutput(0)).setSequenceNumber(0);
+        refund.setLockTime(expireTime);
+        refund.addOutput(CHANNEL_VALUE, clientKey);
+
+        Channel channel = new Channel();
+        channel.server = new PaymentChannelServerState(broadcaster, wallet, serverKey, expireTime);
+        channel.server.provideRefundTransaction(refund, clientKey.getPubKey());
+        channel.server.provideMultiSigContract(contract).get();
+
+        // As PaymentChannelClientState signs each increment.
+        channel.refunds = new BigInteger[payments];
+        channel.signatures = new byte[payments][];
+        for (int i = 0; i < payments; i++) {
+            BigInteger refundSize = CHANNEL_VALUE.subtract(INCREMENT.multiply(BigInteger.valueOf(i + 1)));
+            Transaction tx = new Transaction(params);
+            tx.addOutput(refundSize, clientKey);
+            tx.addInput(contract.getOutput(0));
+            channel.refunds[i] = refundSize;
+            channel.signatures[i] = tx.calculateSignature(0, clientKey, multisigScript, Transaction.SigHash.SINGLE,
+                    true).encodeToBitcoin();
+        }
+        return channel;
+    }
+
+    // Sends every channel's payments in order, channels being spread over the threads.
+    private static void run(ExecutorService executor, List<Channel> channels) throws Exception {
+        List<Future<?>> futures = new ArrayList<Future<?>>(channels.size());
+        for (final Channel channel : channels) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < channel.refunds.length; i++)
+                        channel.server.incrementPayment(channel.refunds[i], channel.signatures[i]);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+    }
+}